@@ -0,0 +1,35 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**Runs the benchmarks with the GC profiler (for <tt>gc.alloc.rate.norm</tt>) and writes
+ * the results as JSON, to <tt>jmh-result.json</tt> unless <tt>-rff</tt> says otherwise.
+ * Any other JMH command line option may be given as well.
+ *
+ * @author Joe Khoobyar
+ */
+public class BenchmarkMain {
+
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main (String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmdLine = new CommandLineOptions (args);
+		Options options = new OptionsBuilder ()
+			.parent (cmdLine)
+			.addProfiler (GCProfiler.class)
+			.resultFormat (cmdLine.getResultFormat ().orElse (ResultFormatType.JSON))
+			.result (cmdLine.getResult ().orElse (DEFAULT_RESULT_FILE))
+			.build ();
+		new Runner (options).run ();
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.JSchException;
+import name.khoobyar.joe.jsch.sspi.GSSContextSSPI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**Measures each step of the {@link GSSContextSSPI} lifecycle against the simulated backend.
+ *
+ * <p>Each step is measured on its own: the state objects below bring a context to the
+ * point just before the step, outside of the measured region.
+ *
+ * @author Joe Khoobyar
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextLifecycleBenchmark {
+
+	static final byte[] SERVER_TOKEN = new byte[1200];
+	static final byte[] MESSAGE = new byte[256];
+
+	/** A context that has not been created yet. */
+	@State(Scope.Thread)
+	public static class Fresh {
+		GSSContextSSPI context;
+
+		@Setup(Level.Invocation)
+		public void setUp (SimulatedState sim) {
+			context = new GSSContextSSPI (sim.backend);
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown () {
+			context.dispose ();
+		}
+	}
+
+	/** A context that is created, but has not sent its first token. */
+	@State(Scope.Thread)
+	public static class Created {
+		GSSContextSSPI context;
+
+		@Setup(Level.Invocation)
+		public void setUp (SimulatedState sim) throws JSchException {
+			context = new GSSContextSSPI (sim.backend);
+			context.create (SimulatedState.USER, SimulatedState.HOST);
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown () {
+			context.dispose ();
+		}
+	}
+
+	/** A context that has sent its first token and waits for the server's reply. */
+	@State(Scope.Thread)
+	public static class FirstLeg {
+		GSSContextSSPI context;
+
+		@Setup(Level.Invocation)
+		public void setUp (SimulatedState sim) throws JSchException {
+			context = new GSSContextSSPI (sim.backend);
+			context.create (SimulatedState.USER, SimulatedState.HOST);
+			context.init (null, 0, 0);
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown () {
+			context.dispose ();
+		}
+	}
+
+	/** An established context, shared by every invocation on a thread. */
+	@State(Scope.Thread)
+	public static class Established {
+		GSSContextSSPI context;
+
+		@Setup(Level.Trial)
+		public void setUp (SimulatedState sim) throws JSchException {
+			context = new GSSContextSSPI (sim.backend);
+			context.create (SimulatedState.USER, SimulatedState.HOST);
+			context.init (null, 0, 0);
+			context.init (SERVER_TOKEN, 0, SERVER_TOKEN.length);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown () {
+			context.dispose ();
+		}
+	}
+
+	@Benchmark
+	public GSSContextSSPI construct (SimulatedState sim) {
+		return new GSSContextSSPI (sim.backend);
+	}
+
+	@Benchmark
+	public void create (Fresh state) throws JSchException {
+		state.context.create (SimulatedState.USER, SimulatedState.HOST);
+	}
+
+	@Benchmark
+	public byte[] initFirstLeg (Created state) throws JSchException {
+		return state.context.init (null, 0, 0);
+	}
+
+	@Benchmark
+	public byte[] initSecondLeg (FirstLeg state) throws JSchException {
+		return state.context.init (SERVER_TOKEN, 0, SERVER_TOKEN.length);
+	}
+
+	@Benchmark
+	public byte[] getMIC (Established state) {
+		return state.context.getMIC (MESSAGE, 0, MESSAGE.length);
+	}
+
+	@Benchmark
+	public void dispose (FirstLeg state) {
+		state.context.dispose ();
+	}
+
+	/** The whole client side of an authentication, from construction to disposal. */
+	@Benchmark
+	public byte[] handshake (SimulatedState sim) throws JSchException {
+		GSSContextSSPI context = new GSSContextSSPI (sim.backend);
+		try {
+			context.create (SimulatedState.USER, SimulatedState.HOST);
+			context.init (null, 0, 0);
+			context.init (SERVER_TOKEN, 0, SERVER_TOKEN.length);
+			return context.getMIC (MESSAGE, 0, MESSAGE.length);
+		}
+		finally {
+			context.dispose ();
+		}
+	}
+}
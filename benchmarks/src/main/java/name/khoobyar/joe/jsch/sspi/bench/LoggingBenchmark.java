@@ -0,0 +1,87 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.Logger;
+import name.khoobyar.joe.jsch.sspi.Utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**Measures {@link Utils#logAndDecode(String, int)} with no logger, a logger that
+ * has every level disabled, and a logger that accepts every message.
+ *
+ * @author Joe Khoobyar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggingBenchmark {
+
+	@Param({ "none", "disabled", "enabled" })
+	public String logger;
+
+	@Setup(Level.Trial)
+	public void setUp (final Blackhole blackhole) {
+		if ("none".equals (logger))
+			Utils.setLogger (null);
+		else
+			Utils.setLogger (new SinkLogger ("enabled".equals (logger), blackhole));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		Utils.setLogger (null);
+	}
+
+	@Benchmark
+	public String success () {
+		return Utils.logAndDecode ("InitializeSecurityContext", 0);
+	}
+
+	@Benchmark
+	public String failure () {
+		return Utils.logAndDecode ("InitializeSecurityContext", 0x80090308);
+	}
+
+	/**Logger that hands messages to a black hole instead of writing them.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class SinkLogger implements Logger {
+		private final boolean enabled;
+		private final Blackhole blackhole;
+
+		SinkLogger (boolean enabled, Blackhole blackhole) {
+			this.enabled = enabled;
+			this.blackhole = blackhole;
+		}
+
+		public boolean isEnabled (int level) {
+			return enabled;
+		}
+
+		public void log (int level, String message) {
+			if (enabled)
+				blackhole.consume (message);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi.bench;
+
+import name.khoobyar.joe.jsch.sspi.SPNResolver;
+import name.khoobyar.joe.jsch.sspi.SSPIBackend;
+import name.khoobyar.joe.jsch.sspi.SimulatedBackend;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**Installs the {@link SimulatedBackend} as the default backend, so the benchmarks
+ * measure the Java side of the handshake on any platform.
+ *
+ * @author Joe Khoobyar
+ */
+@State(Scope.Benchmark)
+public class SimulatedState {
+
+	public static final String USER = "bench";
+	public static final String HOST = "bench-host";
+
+	public SimulatedBackend backend;
+
+	@Setup(Level.Trial)
+	public void setUp () {
+		backend = new SimulatedBackend ();
+		SSPIBackend.setDefault (backend);
+		SPNResolver.getDefault ().addAlias (HOST, HOST + ".example.com");
+	}
+}
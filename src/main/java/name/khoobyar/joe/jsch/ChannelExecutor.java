@@ -0,0 +1,300 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import name.khoobyar.joe.jsch.sspi.Utils;
+
+/**Runs many channels at once over a single authenticated session.
+ *
+ * <p>At most {@link #getMaxChannels()} channels are open at a time, which should not
+ * exceed the server's <tt>MaxSessions</tt> (10 by default for OpenSSH).  If the server
+ * refuses to open a channel anyway, the limit is lowered by one and the task waits for
+ * another channel to close before it tries again.
+ *
+ * <p>Tasks run in the order they were submitted.  At most {@link #getQueueCapacity()}
+ * tasks may be waiting for a channel; beyond that, {@link #submit(String, ChannelTask)}
+ * blocks until there is room, and {@link #trySubmit(String, ChannelTask, long, TimeUnit)}
+ * gives up after a timeout.
+ *
+ * @author Joe Khoobyar
+ */
+public class ChannelExecutor {
+
+	/** The default <tt>MaxSessions</tt> of OpenSSH. */
+	public static final int DEFAULT_MAX_CHANNELS = 10;
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	/** How many times a task retries opening a channel that the server refused. */
+	public static final int MAX_OPEN_ATTEMPTS = 5;
+
+	/** How long to wait for the server to close a channel once its output has ended, in milliseconds. */
+	public static final long CLOSE_TIMEOUT = 5000L;
+
+	/**Work to be done on an open channel.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public interface ChannelTask<C extends Channel, T> {
+		/** Prepares the channel before it is connected (e.g. sets the command to execute). */
+		public void prepare (C channel) throws Exception;
+
+		/** Uses the connected channel. */
+		public T call (C channel) throws Exception;
+	}
+
+	private final Session session;
+	private final int maxChannels;
+	private final int queueCapacity;
+	private final Semaphore queued;
+	private final Semaphore channels;
+	private final AtomicInteger channelLimit;
+	private final ThreadPoolExecutor executor;
+	private int connectTimeout = 30000;
+
+	public ChannelExecutor (Session session) {
+		this (session, DEFAULT_MAX_CHANNELS, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param session        A connected session.
+	 * @param maxChannels    How many channels may be open at once.
+	 * @param queueCapacity  How many submitted tasks may be waiting for a channel.
+	 */
+	public ChannelExecutor (Session session, int maxChannels, int queueCapacity) {
+		if (session == null)
+			throw new IllegalArgumentException ("session");
+		if (maxChannels <= 0 || queueCapacity < 0)
+			throw new IllegalArgumentException ("maxChannels must be positive and queueCapacity must not be negative");
+		this.session = session;
+		this.maxChannels = maxChannels;
+		this.queueCapacity = queueCapacity;
+		this.queued = new Semaphore (maxChannels + queueCapacity, true);
+		this.channels = new Semaphore (maxChannels, true);
+		this.channelLimit = new AtomicInteger (maxChannels);
+
+		final String name = "SSH channel executor " + session.getUserName () + "@" + session.getHost ();
+		this.executor = new ThreadPoolExecutor (maxChannels, maxChannels, 60L, TimeUnit.SECONDS,
+		                                        new LinkedBlockingQueue<Runnable> (), new ThreadFactory () {
+			private final AtomicInteger count = new AtomicInteger ();
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, name + " #" + count.incrementAndGet ());
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut (true);
+	}
+
+	public Session getSession () { return session; }
+	public int getMaxChannels () { return maxChannels; }
+	public int getQueueCapacity () { return queueCapacity; }
+
+	/** @return how many channels may currently be open at once, after any refusals by the server. */
+	public int getChannelLimit () { return channelLimit.get (); }
+
+	/** @return the number of tasks that were submitted and have not finished. */
+	public int getPendingCount () { return maxChannels + queueCapacity - queued.availablePermits (); }
+
+	public int getConnectTimeout () { return connectTimeout; }
+	public void setConnectTimeout (int connectTimeout) { this.connectTimeout = connectTimeout; }
+
+	/** Executes a command on its own <tt>exec</tt> channel, waiting for room in the queue if necessary.
+	 *  @return the command's output and exit status.
+	 */
+	public Future<ExecResult> exec (String command) throws InterruptedException {
+		return submit ("exec", new ExecTask (command));
+	}
+
+	/** Runs a task on its own <tt>sftp</tt> channel, waiting for room in the queue if necessary. */
+	public <T> Future<T> sftp (SftpTask<T> task) throws InterruptedException {
+		return submit ("sftp", task);
+	}
+
+	/** Runs a task on its own channel of the given type, waiting for room in the queue if necessary. */
+	public <C extends Channel, T> Future<T> submit (String type, ChannelTask<C, T> task) throws InterruptedException {
+		queued.acquire ();
+		return enqueue (type, task);
+	}
+
+	/** Runs a task on its own channel of the given type, unless the queue stays full for longer than the timeout.
+	 *  @return the result of the task, or <tt>null</tt> if the queue was full.
+	 */
+	public <C extends Channel, T> Future<T> trySubmit (String type, ChannelTask<C, T> task, long timeout, TimeUnit unit)
+		throws InterruptedException
+	{
+		if (! queued.tryAcquire (timeout, unit))
+			return null;
+		return enqueue (type, task);
+	}
+
+	/** Stops accepting tasks; tasks that were already submitted still run. */
+	public void shutdown () {
+		executor.shutdown ();
+	}
+
+	public boolean awaitTermination (long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination (timeout, unit);
+	}
+
+	private <C extends Channel, T> Future<T> enqueue (final String type, final ChannelTask<C, T> task) {
+		try {
+			return executor.submit (new Callable<T> () {
+				public T call () throws Exception {
+					try { return run (type, task); }
+					finally { queued.release (); }
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			queued.release ();
+			throw e;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <C extends Channel, T> T run (String type, ChannelTask<C, T> task) throws Exception {
+		for (int attempt = 1; ; attempt++) {
+			channels.acquire ();
+			C channel = null;
+			try {
+				channel = (C) session.openChannel (type);
+				task.prepare (channel);
+				try {
+					channel.connect (connectTimeout);
+				} catch (JSchException e) {
+					if (! session.isConnected () || attempt >= MAX_OPEN_ATTEMPTS)
+						throw e;
+					refused (e);
+					continue;
+				}
+				return task.call (channel);
+			}
+			finally {
+				if (channel != null)
+					channel.disconnect ();
+				channels.release ();
+			}
+		}
+	}
+
+	/** Waits for the server to close a channel whose output has ended.  The exit status and the close
+	 *  usually follow the end of the output immediately, so this spins briefly before it sleeps, and
+	 *  gives up after {@link #CLOSE_TIMEOUT}.
+	 *  @return the exit status of the channel, or <tt>-1</tt> if the server did not send one in time.
+	 */
+	static int awaitExitStatus (Channel channel) throws InterruptedException {
+		long deadline = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (CLOSE_TIMEOUT);
+		for (int spins = 0; ! channel.isClosed () && System.nanoTime () - deadline < 0; spins++) {
+			if (spins < 64)
+				Thread.yield ();
+			else
+				Thread.sleep (1);
+		}
+		return channel.getExitStatus ();
+	}
+
+	/** Lowers the channel limit by one (but not below one) after the server refused a channel. */
+	private void refused (JSchException e) throws InterruptedException {
+		int limit = channelLimit.get ();
+		if (limit > 1 && channelLimit.compareAndSet (limit, limit - 1)) {
+			Utils.log ("Server refused a channel (" + e.getMessage () + "), lowering the channel limit to " + (limit - 1));
+			channels.acquire ();
+		}
+	}
+
+	/**A task that runs on an <tt>sftp</tt> channel, which needs no preparation.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static abstract class SftpTask<T> implements ChannelTask<ChannelSftp, T> {
+		public void prepare (ChannelSftp channel) {
+		}
+	}
+
+	/**Executes a command, collecting its output and exit status.  Each instance
+	 * runs its command once.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class ExecTask implements ChannelTask<ChannelExec, ExecResult> {
+		private final String command;
+		private ByteArrayOutputStream stderr;
+		private InputStream stdout;
+
+		public ExecTask (String command) {
+			this.command = command;
+		}
+
+		public void prepare (ChannelExec channel) throws IOException {
+			stderr = new ByteArrayOutputStream ();
+			channel.setCommand (command);
+			channel.setInputStream (null);
+			channel.setErrStream (stderr, true);
+			stdout = channel.getInputStream ();
+		}
+
+		public ExecResult call (ChannelExec channel) throws IOException, InterruptedException {
+			ByteArrayOutputStream output = new ByteArrayOutputStream ();
+			byte[] buffer = new byte[8192];
+			for (int n; (n = stdout.read (buffer)) >= 0; )
+				output.write (buffer, 0, n);
+			return new ExecResult (command, awaitExitStatus (channel), output.toByteArray (), stderr.toByteArray ());
+		}
+	}
+
+	/**The output and exit status of a command.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class ExecResult {
+		private final String command;
+		private final int exitStatus;
+		private final byte[] output;
+		private final byte[] error;
+
+		public ExecResult (String command, int exitStatus, byte[] output, byte[] error) {
+			this.command = command;
+			this.exitStatus = exitStatus;
+			this.output = output;
+			this.error = error;
+		}
+
+		public String getCommand () { return command; }
+		public int getExitStatus () { return exitStatus; }
+		public byte[] getOutput () { return output; }
+		public byte[] getError () { return error; }
+
+		public String getOutput (String charset) throws UnsupportedEncodingException {
+			return new String (output, charset);
+		}
+
+		public String getError (String charset) throws UnsupportedEncodingException {
+			return new String (error, charset);
+		}
+
+		public String toString () {
+			return "ExecResult[command=" + command + ", exitStatus=" + exitStatus
+				+ ", output=" + output.length + " bytes, error=" + error.length + " bytes]";
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import name.khoobyar.joe.jsch.sspi.Utils;
+
+/**Uploads one large file as ranges sent in parallel over several sessions.
+ *
+ * <p>The file is split into ranges of {@link #getRangeSize()} bytes, which are written
+ * into <tt>&lt;destination&gt;.part</tt> with <tt>dd seek=...</tt> over up to
+ * {@link #getParallelism()} sessions borrowed from a {@link SessionPool}.  Each range is
+ * verified by comparing a checksum computed remotely (<tt>sha256sum</tt> by default)
+ * with one computed locally, and is sent again if they differ.  Once every range is
+ * verified, the partial file is renamed over the destination in one step.
+ *
+ * <p>If an upload fails, the partial file is left in place.  Uploading the same file
+ * again only sends the ranges whose checksums do not match yet.  The partial file is
+ * truncated to the size of the file first, in case it was left by a larger file.
+ *
+ * <p>The remote host must provide a POSIX shell with <tt>dd</tt>, <tt>truncate</tt>,
+ * <tt>mv</tt> and the checksum command.
+ *
+ * @author Joe Khoobyar
+ */
+public class ChunkedUploader {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+	public static final long DEFAULT_RANGE_SIZE = 64L * 1024 * 1024;
+	public static final String PART_SUFFIX = ".part";
+
+	/** The block size given to <tt>dd</tt>; range sizes are a multiple of it. */
+	public static final int BLOCK_SIZE = 1024 * 1024;
+
+	/** How many times a range is sent before the upload gives up on it. */
+	public static final int MAX_ATTEMPTS = 3;
+
+	private final SessionPool pool;
+	private final String user;
+	private final String host;
+	private final int port;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private long rangeSize = DEFAULT_RANGE_SIZE;
+	private int bufferSize = ScpUploader.DEFAULT_BUFFER_SIZE;
+	private String checksumCommand = "sha256sum";
+	private String checksumAlgorithm = "SHA-256";
+
+	public ChunkedUploader (SessionPool pool, String user, String host, int port) {
+		if (pool == null)
+			throw new IllegalArgumentException ("pool");
+		this.pool = pool;
+		this.user = user;
+		this.host = host;
+		this.port = port;
+	}
+
+	/** @return how many sessions are used at most. */
+	public int getParallelism () { return parallelism; }
+	public void setParallelism (int parallelism) { this.parallelism = Math.max (parallelism, 1); }
+
+	/** @return the size of each range, in bytes. */
+	public long getRangeSize () { return rangeSize; }
+	public void setRangeSize (long rangeSize) {
+		if (rangeSize <= 0 || rangeSize % BLOCK_SIZE != 0)
+			throw new IllegalArgumentException ("rangeSize must be a positive multiple of " + BLOCK_SIZE);
+		this.rangeSize = rangeSize;
+	}
+
+	/** @return the most data written to a channel at once. */
+	public int getBufferSize () { return bufferSize; }
+	public void setBufferSize (int bufferSize) { this.bufferSize = Math.max (bufferSize, 512); }
+
+	/** Sets the remote command that checksums its standard input, and the matching local
+	 *  <tt>MessageDigest</tt> algorithm (for example <tt>md5sum</tt> and <tt>MD5</tt>).
+	 */
+	public void setChecksum (String command, String algorithm) throws NoSuchAlgorithmException {
+		MessageDigest.getInstance (algorithm);
+		this.checksumCommand = command;
+		this.checksumAlgorithm = algorithm;
+	}
+
+	public String getChecksumCommand () { return checksumCommand; }
+	public String getChecksumAlgorithm () { return checksumAlgorithm; }
+
+	/** Uploads <tt>source</tt> to the remote path <tt>destination</tt>, resuming any earlier attempt.
+	 *  @throws IOException if any range could not be sent and verified; the ranges that were
+	 *          are kept for the next attempt.
+	 */
+	public Result upload (File source, String destination) throws IOException, InterruptedException {
+		long start = System.nanoTime ();
+		String part = destination + PART_SUFFIX;
+		FileInputStream input = new FileInputStream (source);
+		try {
+			FileChannel file = input.getChannel ();
+			long size = file.size ();
+			ConcurrentLinkedQueue<Range> queue = new ConcurrentLinkedQueue<Range> ();
+			for (long offset = 0; offset < size || offset == 0; offset += rangeSize)
+				queue.add (new Range (offset, Math.min (rangeSize, size - offset)));
+			Result result = new Result (size, queue.size ());
+
+			// Drop anything beyond the end (from an earlier, larger file) before any range is checked.
+			Session session = pool.borrow (user, host, port);
+			try {
+				exec (session, "truncate -s " + size + " " + ScpUploader.quote (part), null, null);
+				pool.release (session);
+			} catch (IOException e) {
+				pool.invalidate (session);
+				throw e;
+			}
+
+			int count = Math.min (parallelism, queue.size ());
+			Thread workers[] = new Thread[count];
+			for (int i = 0; i < count; i++) {
+				workers[i] = new Thread (new Worker (file, part, queue, result), "Chunked upload to " + host + " #" + (i + 1));
+				workers[i].setDaemon (true);
+				workers[i].start ();
+			}
+			try {
+				for (Thread worker : workers)
+					worker.join ();
+			} catch (InterruptedException e) {
+				for (Thread worker : workers)
+					worker.interrupt ();
+				throw e;
+			}
+
+			if (! queue.isEmpty () || ! result.failures.isEmpty ())
+				throw new IOException ("Failed to upload " + source + " to " + part + ": " + result.failures
+					+ (queue.isEmpty () ? "" : " (" + queue.size () + " ranges were not attempted)"));
+
+			// Rename in one step.
+			session = pool.borrow (user, host, port);
+			try {
+				exec (session, "mv -f " + ScpUploader.quote (part) + " " + ScpUploader.quote (destination), null, null);
+				pool.release (session);
+			} catch (IOException e) {
+				pool.invalidate (session);
+				throw e;
+			}
+			result.nanos = System.nanoTime () - start;
+			return result;
+		}
+		catch (JSchException e) {
+			throw (IOException) new IOException ("Failed to upload " + source + ": " + e.getMessage ()).initCause (e);
+		}
+		finally {
+			try { input.close (); } catch (IOException e) {}
+		}
+	}
+
+	/**Sends ranges from the shared queue through one session at a time.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	class Worker implements Runnable {
+		private final FileChannel file;
+		private final String part;
+		private final ConcurrentLinkedQueue<Range> queue;
+		private final Result result;
+
+		Worker (FileChannel file, String part, ConcurrentLinkedQueue<Range> queue, Result result) {
+			this.file = file;
+			this.part = part;
+			this.queue = queue;
+			this.result = result;
+		}
+
+		public void run () {
+			while (! queue.isEmpty () && ! Thread.currentThread ().isInterrupted ()) {
+				Session session;
+				try {
+					session = pool.borrow (user, host, port);
+				} catch (JSchException e) {
+					Utils.log ("Chunked upload could not borrow a session: " + e.getMessage ());
+					return;
+				}
+				Range range = null;
+				try {
+					while ((range = queue.poll ()) != null) {
+						send (session, range);
+						range = null;
+					}
+					pool.release (session);
+				} catch (IOException e) {
+					pool.invalidate (session);
+					if (range != null && ++range.attempts < MAX_ATTEMPTS)
+						queue.add (range);
+					else if (range != null)
+						result.fail (range, e.getMessage ());
+				}
+			}
+		}
+
+		/** Sends a range unless the partial file already holds it, then verifies it. */
+		private void send (Session session, Range range) throws IOException {
+			String expected = checksum (range);
+			if (expected.equals (remoteChecksum (session, range))) {
+				result.skip ();
+				return;
+			}
+			for (;;) {
+				exec (session, "dd of=" + ScpUploader.quote (part) + " bs=" + BLOCK_SIZE
+					+ " seek=" + (range.offset / BLOCK_SIZE) + " conv=notrunc 2>/dev/null", file, range);
+				result.sent (range.length);
+				if (expected.equals (remoteChecksum (session, range)))
+					return;
+				if (++range.attempts >= MAX_ATTEMPTS) {
+					result.fail (range, "checksum mismatch");
+					return;
+				}
+			}
+		}
+
+		private String remoteChecksum (Session session, Range range) throws IOException {
+			String output = exec (session, "dd if=" + ScpUploader.quote (part) + " bs=" + BLOCK_SIZE
+				+ " skip=" + (range.offset / BLOCK_SIZE) + " count=" + ((range.length + BLOCK_SIZE - 1) / BLOCK_SIZE)
+				+ " 2>/dev/null | " + checksumCommand, null, null);
+			int end = output.indexOf (' ');
+			return (end < 0 ? output : output.substring (0, end)).trim ().toLowerCase ();
+		}
+
+		private String checksum (Range range) throws IOException {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance (checksumAlgorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw (IOException) new IOException (e.getMessage ()).initCause (e);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate ((int) Math.min (range.length, bufferSize));
+			for (long position = range.offset, end = range.offset + range.length; position < end; ) {
+				buffer.clear ();
+				buffer.limit ((int) Math.min (buffer.capacity (), end - position));
+				int n = file.read (buffer, position);
+				if (n < 0)
+					throw new IOException ("File shrank while it was being checksummed");
+				buffer.flip ();
+				digest.update (buffer);
+				position += n;
+			}
+			StringBuilder sb = new StringBuilder ();
+			for (byte b : digest.digest ())
+				sb.append (Character.forDigit ((b >> 4) & 0xF, 16)).append (Character.forDigit (b & 0xF, 16));
+			return sb.toString ();
+		}
+	}
+
+	/** Runs a command, feeding it a range of <tt>file</tt> (if any) as its standard input.
+	 *  @return the standard output of the command.
+	 *  @throws IOException if the command fails or exits with a non-zero status.
+	 */
+	String exec (Session session, String command, FileChannel file, Range range) throws IOException {
+		ChannelExec channel = null;
+		try {
+			channel = (ChannelExec) session.openChannel ("exec");
+			channel.setCommand (command);
+			ByteArrayOutputStream error = new ByteArrayOutputStream ();
+			channel.setErrStream (error, true);
+			InputStream in = channel.getInputStream ();
+			OutputStream out = channel.getOutputStream ();
+			channel.connect ();
+
+			if (file != null)
+				new FileSender (channel, bufferSize).send (file, range.offset, range.length, out);
+			out.close ();
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream ();
+			byte[] buffer = new byte[1024];
+			for (int n; (n = in.read (buffer)) >= 0; )
+				output.write (buffer, 0, n);
+			int status = ChannelExecutor.awaitExitStatus (channel);
+			if (status != 0)
+				throw new IOException ("Remote command failed (exit status " + status + "): "
+					+ command + ": " + error.toString ("UTF-8").trim ());
+			return output.toString ("UTF-8");
+		}
+		catch (JSchException e) {
+			throw (IOException) new IOException (e.getMessage ()).initCause (e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new IOException ("Interrupted while running: " + command);
+		}
+		finally {
+			if (channel != null)
+				channel.disconnect ();
+		}
+	}
+
+	/**A range of the file.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Range {
+		final long offset;
+		final long length;
+		int attempts;
+
+		Range (long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String toString () {
+			return offset + "+" + length;
+		}
+	}
+
+	/**The outcome of an upload.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class Result {
+		private final long size;
+		private final int ranges;
+		private int skipped;
+		private long bytesSent;
+		private long nanos;
+		final List<String> failures = new ArrayList<String> ();
+
+		Result (long size, int ranges) {
+			this.size = size;
+			this.ranges = ranges;
+		}
+
+		synchronized void skip () { skipped++; }
+		synchronized void sent (long bytes) { bytesSent += bytes; }
+		synchronized void fail (Range range, String reason) { failures.add (range + ": " + reason); }
+
+		public long getSize () { return size; }
+		public int getRanges () { return ranges; }
+
+		/** @return the number of ranges that were already uploaded by an earlier attempt. */
+		public synchronized int getSkipped () { return skipped; }
+
+		/** @return the bytes sent, including ranges that had to be sent again. */
+		public synchronized long getBytesSent () { return bytesSent; }
+
+		public long getNanos () { return nanos; }
+
+		/** @return the aggregate throughput, in bytes per second. */
+		public synchronized double getBytesPerSecond () {
+			return nanos > 0 ? bytesSent * 1e9 / nanos : 0;
+		}
+
+		public synchronized String toString () {
+			return "Result[size=" + size + ", ranges=" + ranges + ", skipped=" + skipped + ", sent=" + bytesSent
+				+ ", elapsed=" + (nanos / 1000000) + "ms, throughput=" + (long) getBytesPerSecond () + " B/s]";
+		}
+	}
+}
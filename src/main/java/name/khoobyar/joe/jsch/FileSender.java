@@ -0,0 +1,100 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.jcraft.jsch.Channel;
+
+/**Copies local files into the output stream of an SSH channel.
+ *
+ * <p>Files are read through a <tt>FileChannel</tt> straight into one reusable chunk,
+ * which is written to the channel.  Each byte is copied twice on the way: from the file
+ * into the chunk (the JDK reads through a temporary direct buffer, so this is two memory
+ * copies), and by JSch from the chunk into its packet buffer before it is encrypted.
+ * Nothing is memory-mapped, so sending many large files holds no address space beyond
+ * the chunk.  Chunks are a whole number of SSH packets long, as negotiated with the
+ * server, so that every write fills complete packets rather than leaving a partial one
+ * behind.
+ *
+ * @author Joe Khoobyar
+ */
+class FileSender {
+
+	/** The bytes of each packet that the channel output stream reserves for headers and padding. */
+	static final int PACKET_OVERHEAD = 14 + 84;
+
+	/** Used when the packet size cannot be determined. */
+	static final int DEFAULT_PACKET_PAYLOAD = 32768 - PACKET_OVERHEAD;
+
+	private static final Field remotePacketSize = field ("rmpsize");
+	private static final Field remoteWindowSize = field ("rwsize");
+
+	private final byte[] chunk;
+
+	/** Creates a sender with chunks of (at most) <tt>limit</tt> bytes, aligned to the packets of <tt>channel</tt>. */
+	FileSender (Channel channel, int limit) {
+		this.chunk = new byte[getChunkSize (channel, limit)];
+	}
+
+	int getChunkSize () {
+		return chunk.length;
+	}
+
+	/** Writes <tt>count</tt> bytes of <tt>file</tt>, starting at <tt>position</tt>, to <tt>out</tt>. */
+	void send (FileChannel file, long position, long count, OutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap (chunk);
+		while (count > 0) {
+			buffer.clear ();
+			buffer.limit ((int) Math.min (chunk.length, count));
+			int n = file.read (buffer, position);
+			if (n < 0)
+				throw new IOException ("File shrank while it was being sent");
+			out.write (chunk, 0, n);
+			position += n;
+			count -= n;
+		}
+	}
+
+	/** @return the largest whole number of packet payloads that fits in <tt>limit</tt>
+	 *          and in the remote window, but at least one packet.
+	 */
+	static int getChunkSize (Channel channel, int limit) {
+		int payload = getPacketPayload (channel);
+		long window = getLong (remoteWindowSize, channel, Long.MAX_VALUE);
+		long size = Math.min (limit, window > 0 ? window : limit);
+		return (int) Math.max (payload, size / payload * payload);
+	}
+
+	/** @return the data that fits in one packet sent through the channel's output stream. */
+	static int getPacketPayload (Channel channel) {
+		long packetSize = getLong (remotePacketSize, channel, 0);
+		return packetSize > PACKET_OVERHEAD ? (int) packetSize - PACKET_OVERHEAD : DEFAULT_PACKET_PAYLOAD;
+	}
+
+	private static long getLong (Field field, Channel channel, long defaultValue) {
+		if (field == null || channel == null)
+			return defaultValue;
+		try {
+			return ((Number) field.get (channel)).longValue ();
+		} catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
+	/** JSch does not expose the sizes it negotiated for a channel, so they are read reflectively. */
+	private static Field field (String name) {
+		try {
+			Field field = Channel.class.getDeclaredField (name);
+			field.setAccessible (true);
+			return field;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -3,7 +3,40 @@
  */
 package name.khoobyar.joe.jsch;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
 import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import name.khoobyar.joe.jsch.sspi.CredentialCache;
+import name.khoobyar.joe.jsch.sspi.Deadlines;
+import name.khoobyar.joe.jsch.sspi.GSSContextFactory;
+import name.khoobyar.joe.jsch.sspi.GSSContextSSPI;
+import name.khoobyar.joe.jsch.sspi.GSSKexGexSHA1;
+import name.khoobyar.joe.jsch.sspi.GSSKexGroup14SHA1;
+import name.khoobyar.joe.jsch.sspi.GSSKexGroup14SHA256;
+import name.khoobyar.joe.jsch.sspi.GSSKeyExchange;
+import name.khoobyar.joe.jsch.sspi.KerberosPackage;
+import name.khoobyar.joe.jsch.sspi.PooledGSSContext;
+import name.khoobyar.joe.jsch.sspi.SPNResolver;
+import name.khoobyar.joe.jsch.sspi.SSPIBackend;
+import name.khoobyar.joe.jsch.sspi.SSPIExecutor;
+import name.khoobyar.joe.jsch.sspi.TokenBufferPool;
+import name.khoobyar.joe.jsch.sspi.UserAuthGSSAPIKeyex;
+import name.khoobyar.joe.jsch.sspi.Utils;
 
 /**	<h3>Simplifies usage of JSch with native Kerberos support on Windows XP or above.
  *	</h3>
@@ -35,39 +68,309 @@ public class JSchSSPI
 	extends JSch
 {
 
+	private volatile boolean configured;
+
 	/** 
 	 *	Simplest way to <em>create</em> a JSch instance that supports native Kerberos
 	 *	implementations on Windows XP or above.
+	 *
+	 *	<p>Construction does not wait for the native library: it starts {@link #prepare()},
+	 *	and the first call to {@link #getSession(String, String, int)} waits for it to
+	 *	finish before configuring JSch.
 	 */
 	public JSchSSPI () {
 		super ();
-		configure (this);
+		prepare ();
+	}
+
+	/** Waits for {@link #prepare()}, and configures JSch for SSPI if it is usable. */
+	public Session getSession (String username, String host, int port) throws JSchException {
+		if (! configured) {
+			synchronized (this) {
+				if (! configured) {
+					if (awaitReady ())
+						configureForSSPI (this);
+					configured = true;
+				}
+			}
+		}
+		return super.getSession (username, host, port);
+	}
+
+	/** Connects and authenticates a new session in the background.
+	 *  @see #connectAsync(Session, Deadlines)
+	 */
+	public Future<Session> connectAsync (final String username, final String host, final int port, final Deadlines deadlines) {
+		return SSPIExecutor.getDefault ().submit (new Callable<Session> () {
+			public Session call () throws JSchException {
+				return connect (getSession (username, host, port), deadlines);
+			}
+		});
+	}
+
+	/** Connects and authenticates a session on the {@link SSPIExecutor}, so that the caller
+	 *  never blocks on a slow resolver or KDC.  Canonicalizing the host name, acquiring
+	 *  credentials and each leg of the Kerberos handshake are bounded by <tt>deadlines</tt>,
+	 *  and the connection itself by its connect timeout.  A handshake that misses its
+	 *  deadline is abandoned: its security context is released as soon as the native call
+	 *  returns, and JSch moves on to the next authentication method.
+	 *
+	 *  @return a future of the connected session.  If the connection fails, the session is
+	 *          disconnected and the future fails with the <tt>JSchException</tt>.
+	 */
+	public static Future<Session> connectAsync (final Session session, final Deadlines deadlines) {
+		return SSPIExecutor.getDefault ().submit (new Callable<Session> () {
+			public Session call () throws JSchException {
+				return connect (session, deadlines);
+			}
+		});
+	}
+
+	private static Session connect (Session session, Deadlines deadlines) throws JSchException {
+		Deadlines previous = Deadlines.setCurrent (deadlines);
+		try {
+			session.connect ((int) Math.min (deadlines.getConnect (), Integer.MAX_VALUE));
+			return session;
+		} catch (JSchException e) {
+			session.disconnect ();
+			throw e;
+		} finally {
+			GSSKeyExchange.discard (session);
+			Deadlines.setCurrent (previous);
+		}
+	}
+
+	/** Starts binding the native library, probing the Kerberos package and acquiring the
+	 *  shared credentials handle on a background thread, once per JVM.  Every later call
+	 *  returns the same future.
+	 *
+	 *  <p>The future completes once the library is bound and the package is probed; the
+	 *  credentials handle is acquired right after, so that a connection made meanwhile
+	 *  only waits for what it actually needs.
+	 *
+	 *  @return a future of <tt>true</tt> if SSPI authentication can be used.
+	 */
+	public static Future<Boolean> prepare () {
+		return Startup.READY;
+	}
+
+	/** Waits for {@link #prepare()}.
+	 *  @return <tt>true</tt> if SSPI authentication can be used.
+	 */
+	public static boolean awaitReady () throws JSchException {
+		try {
+			return prepare ().get ().booleanValue ();
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new JSchException ("Interrupted while waiting for SSPI to start", e);
+		} catch (ExecutionException e) {
+			Utils.log ("SSPI failed to start: " + e.getCause ());
+			return false;
+		}
+	}
+
+	private static boolean bind () {
+		SSPIBackend backend = SSPIBackend.getDefault ();
+		if (! backend.isSupported ())
+			return false;
+		backend.bind ();
+		if (! backend.getKerberosPackage ().isFound ())
+			return false;
+
+		// Load and initialize the classes of the authentication path.
+		SPNResolver.getDefault ();
+		TokenBufferPool.getDefault ();
+		GSSContextFactory.getDefault ();
+		return true;
+	}
+
+	/**Runs {@link JSchSSPI#bind()} on a daemon thread, then acquires the shared credentials.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	private static class Startup {
+		static final FutureTask<Boolean> READY = new FutureTask<Boolean> (new Callable<Boolean> () {
+			public Boolean call () {
+				return Boolean.valueOf (bind ());
+			}
+		});
+
+		static {
+			Thread thread = new Thread ("SSPI startup") {
+				public void run () {
+					READY.run ();
+					try {
+						if (READY.get ().booleanValue ())
+							CredentialCache.release (CredentialCache.acquire (KerberosPackage.NAME));
+					} catch (Exception e) {
+						Utils.log ("Failed to acquire credentials ahead of time: " + e);
+					}
+				}
+			};
+			thread.setDaemon (true);
+			thread.start ();
+		}
 	}
 
 	/** Simplest way to <em>configure</em> an existing JSch that supports native Kerberos
-	 *	implementations on Windows XP or above.
+	 *	implementations on Windows XP or above, or MIT Kerberos (<tt>libgssapi_krb5</tt>)
+	 *	elsewhere.  The backend is chosen by {@link SSPIBackend#getDefault()}.
 	 */
 	public static JSch configure (JSch jsch) {
-		String osname = System.getProperty ("os.name");
-		if (osname!=null && osname.toLowerCase().startsWith ("windows")) {
-			String osver = System.getProperty ("os.version");
-			if (osver != null) {
-				osver = osver.trim ();
-				int n = osver.indexOf ('.');
-				if (n > 0)
-					osver = osver.substring (0, n);
-				if (Integer.parseInt (osver) >= 5)
-					configureForSSPI (jsch);
+		if (SSPIBackend.getDefault ().isSupported () && KerberosPackage.isAvailable ())
+			configureForSSPI (jsch);
+		return jsch;
+	}
+
+	/** Warms up authentication to the given hosts in the background, so that the first
+	 *  connection to each of them is as fast as later ones.
+	 *
+	 *  <p>For each host, the host name is canonicalized, the shared credentials handle is
+	 *  acquired, and the first leg of a security context is initialized, which has the
+	 *  security package fetch (and cache) the service ticket for the host.  No SSH
+	 *  connection is opened.  The contexts come from the default {@link GSSContextFactory},
+	 *  so they also fill its pool for the connections that follow.
+	 *
+	 *  @param hosts        The hosts to warm up.
+	 *  @param parallelism  How many hosts are warmed up at once.
+	 *  @return the outcome of the warm-up, once it is done.
+	 */
+	public static Future<WarmUpReport> warmUp (Collection<String> hosts, final int parallelism) {
+		final List<String> list = new ArrayList<String> (hosts);
+		FutureTask<WarmUpReport> task = new FutureTask<WarmUpReport> (new Callable<WarmUpReport> () {
+			public WarmUpReport call () throws InterruptedException {
+				return runWarmUp (list, Math.max (1, Math.min (parallelism, list.size ())));
 			}
+		});
+		Thread thread = new Thread (task, "SSPI warm-up");
+		thread.setDaemon (true);
+		thread.start ();
+		return task;
+	}
+
+	private static WarmUpReport runWarmUp (List<String> hosts, int parallelism) throws InterruptedException {
+		final WarmUpReport report = new WarmUpReport ();
+		if (! SSPIBackend.getDefault ().isSupported () || ! KerberosPackage.isAvailable ()) {
+			report.finish ();
+			return report;
 		}
-		return jsch;
+		TokenBufferPool.getDefault ();
+
+		final String user = System.getProperty ("user.name");
+		ExecutorService executor = Executors.newFixedThreadPool (parallelism, new ThreadFactory () {
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, "SSPI warm-up worker");
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+		try {
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>> (hosts.size ());
+			for (final String host : hosts)
+				tasks.add (new Callable<Object> () {
+					public Object call () {
+						long start = System.nanoTime ();
+						String error = null;
+						GSSContextSSPI context = null;
+						try {
+							SPNResolver.getDefault ().getServicePrincipalName (host);
+							context = GSSContextFactory.getDefault ().newContext ();
+							context.create (user, host);
+							context.init (null, 0, 0);
+						} catch (Exception e) {
+							error = e.getMessage () != null ? e.getMessage () : e.toString ();
+							Utils.log ("Failed to warm up " + host + ": " + error);
+						} finally {
+							if (context != null)
+								context.dispose ();
+						}
+						report.add (host, System.nanoTime () - start, error);
+						return null;
+					}
+				});
+			executor.invokeAll (tasks);
+		}
+		finally {
+			executor.shutdownNow ();
+		}
+		report.finish ();
+		Utils.log (report.toString ());
+		return report;
 	}
 
+	/**The outcome of {@link JSchSSPI#warmUp(Collection, int)}.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class WarmUpReport {
+		private final long start = System.nanoTime ();
+		private final Map<String, Long> nanos = new LinkedHashMap<String, Long> ();
+		private final Map<String, String> failures = new LinkedHashMap<String, String> ();
+		private long elapsed;
+
+		synchronized void add (String host, long nanos, String error) {
+			this.nanos.put (host, nanos);
+			if (error != null)
+				failures.put (host, error);
+		}
+
+		synchronized void finish () {
+			elapsed = System.nanoTime () - start;
+		}
+
+		/** @return how long the whole warm-up took (in nanoseconds). */
+		public synchronized long getElapsedNanos () { return elapsed; }
+
+		/** @return how long each host took to warm up (in nanoseconds). */
+		public synchronized Map<String, Long> getHostNanos () { return Collections.unmodifiableMap (new LinkedHashMap<String, Long> (nanos)); }
+
+		/** @return the error for each host that could not be warmed up. */
+		public synchronized Map<String, String> getFailures () { return Collections.unmodifiableMap (new LinkedHashMap<String, String> (failures)); }
+
+		public synchronized String toString () {
+			return "WarmUpReport[hosts=" + nanos.size () + ", failures=" + failures.size ()
+				+ ", elapsed=" + (elapsed / 1000000) + "ms]";
+		}
+	}
+
+	/** System property that turns on GSS-API key exchange when set to <tt>true</tt>. */
+	public static final String KEYEX_PROPERTY = "name.khoobyar.joe.jsch.sspi.keyex";
+
 	/** Configures the given JSch instance for SSPI support.
-	 *  Assumes that the host OS is at least Windows XP.
+	 *  Assumes that the default {@link SSPIBackend} is supported.
+	 *
+	 *  <p>If the <tt>name.khoobyar.joe.jsch.sspi.keyex</tt> system property is <tt>true</tt>,
+	 *  GSS-API key exchange and the <tt>gssapi-keyex</tt> user authentication method are
+	 *  preferred as well.  With a server that offers them, authentication rides on the key
+	 *  exchange and the host key is vouched for by Kerberos; with a server that does not, the
+	 *  usual key exchange and <tt>gssapi-with-mic</tt> are used.  It is off by default, since
+	 *  a server offering GSS-API key exchange for which no service ticket can be obtained
+	 *  fails the connection, instead of falling back to another authentication method.
+	 *  Sessions that are connected other than through {@link #connectAsync(Session, Deadlines)}
+	 *  or a {@link SessionPool} should be passed to {@link GSSKeyExchange#discard(Session)}
+	 *  once connected, in case the key exchange context was not used to authenticate.
 	 */
 	protected static void configureForSSPI (JSch jsch) {
-		jsch.setConfig ("gssapi-with-mic.krb5", "name.khoobyar.joe.jsch.sspi.GSSContextSSPI");
+		jsch.setConfig ("gssapi-with-mic.krb5", PooledGSSContext.class.getName ());
+		jsch.setConfig ("userauth." + UserAuthGSSAPIKeyex.METHOD, UserAuthGSSAPIKeyex.class.getName ());
+		if (! "true".equalsIgnoreCase (System.getProperty (KEYEX_PROPERTY)))
+			return;
+
+		jsch.setConfig (GSSKexGroup14SHA256.NAME, GSSKexGroup14SHA256.class.getName ());
+		jsch.setConfig (GSSKexGroup14SHA1.NAME, GSSKexGroup14SHA1.class.getName ());
+		jsch.setConfig (GSSKexGexSHA1.NAME, GSSKexGexSHA1.class.getName ());
+		jsch.setConfig ("kex", prepend (JSch.getConfig ("kex"),
+			GSSKexGroup14SHA256.NAME + "," + GSSKexGroup14SHA1.NAME + "," + GSSKexGexSHA1.NAME));
+		jsch.setConfig ("PreferredAuthentications", prepend (JSch.getConfig ("PreferredAuthentications"), UserAuthGSSAPIKeyex.METHOD));
+	}
+
+	/** @return the comma separated <tt>list</tt>, starting with <tt>first</tt> (unless it already does). */
+	private static String prepend (String list, String first) {
+		if (list == null || list.length () == 0)
+			return first;
+		if (list.startsWith (first))
+			return list;
+		return first + "," + list;
 	}
 }
 
@@ -0,0 +1,513 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import name.khoobyar.joe.jsch.sspi.Utils;
+
+/**Uploads many files with SCP, through a few long-lived channels.
+ *
+ * <p>Files are spread across up to {@link #getParallelism()} sessions borrowed from a
+ * {@link SessionPool}.  Each session runs a single <tt>scp -r -t</tt> sink for as many
+ * files as it can take from the shared queue, creating remote subdirectories as it goes.
+ * Headers and file data are written without waiting for each acknowledgement; up to
+ * {@link #getWindow()} acknowledgements may be outstanding on a channel at a time.
+ * File contents are sent by a {@link FileSender}, in chunks aligned to SSH packets.
+ *
+ * <p>If the sink rejects a file after its data was sent, only that file fails.  If it
+ * rejects a header, the channel can no longer be trusted, so it is closed and the files
+ * that were not yet acknowledged are queued again (up to {@link #MAX_ATTEMPTS} times).
+ *
+ * @author Joe Khoobyar
+ */
+public class ScpUploader {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+	public static final int DEFAULT_WINDOW = 32;
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	/** How many times a file is sent before it is given up on. */
+	public static final int MAX_ATTEMPTS = 3;
+
+	/**Notified as each file is done.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public interface Listener {
+		public void transferred (FileResult result);
+	}
+
+	private final SessionPool pool;
+	private final String user;
+	private final String host;
+	private final int port;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private int window = DEFAULT_WINDOW;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private String directoryMode = "0755";
+	private Listener listener;
+
+	public ScpUploader (SessionPool pool, String user, String host, int port) {
+		if (pool == null)
+			throw new IllegalArgumentException ("pool");
+		this.pool = pool;
+		this.user = user;
+		this.host = host;
+		this.port = port;
+	}
+
+	/** @return how many sessions are used at most. */
+	public int getParallelism () { return parallelism; }
+	public void setParallelism (int parallelism) { this.parallelism = Math.max (parallelism, 1); }
+
+	/** @return how many acknowledgements may be outstanding on a channel. */
+	public int getWindow () { return window; }
+	public void setWindow (int window) { this.window = Math.max (window, 2); }
+
+	/** @return the most data written to a channel at once; it is rounded down to a whole number of packets. */
+	public int getBufferSize () { return bufferSize; }
+	public void setBufferSize (int bufferSize) { this.bufferSize = Math.max (bufferSize, 512); }
+
+	/** @return the mode of the remote directories that are created. */
+	public String getDirectoryMode () { return directoryMode; }
+	public void setDirectoryMode (String directoryMode) { this.directoryMode = directoryMode; }
+
+	public Listener getListener () { return listener; }
+	public void setListener (Listener listener) { this.listener = listener; }
+
+	/** Uploads files into a remote directory, under their own names. */
+	public Report upload (String remoteDirectory, File... files) throws InterruptedException {
+		List<ScpFile> list = new ArrayList<ScpFile> (files.length);
+		for (File file : files)
+			list.add (new ScpFile (file, file.getName ()));
+		return upload (remoteDirectory, list);
+	}
+
+	/** Uploads files into an existing remote directory.
+	 *  @return the outcome of every file, and the aggregate throughput.
+	 */
+	public Report upload (String remoteDirectory, List<ScpFile> files) throws InterruptedException {
+		List<ScpFile> sorted = new ArrayList<ScpFile> (files);
+		Collections.sort (sorted);
+		BlockingDeque<ScpFile> queue = new LinkedBlockingDeque<ScpFile> (sorted);
+		Report report = new Report ();
+
+		int count = Math.min (parallelism, Math.max (sorted.size (), 1));
+		Thread workers[] = new Thread[count];
+		for (int i = 0; i < count; i++) {
+			workers[i] = new Thread (new Worker (remoteDirectory, queue, report), "SCP upload to " + host + " #" + (i + 1));
+			workers[i].setDaemon (true);
+			workers[i].start ();
+		}
+		try {
+			for (Thread worker : workers)
+				worker.join ();
+		} catch (InterruptedException e) {
+			for (Thread worker : workers)
+				worker.interrupt ();
+			throw e;
+		}
+
+		// Anything left over could not be sent at all.
+		for (ScpFile file; (file = queue.poll ()) != null; )
+			report.add (new FileResult (file, 0, 0, "No session was available"), listener);
+		report.finish ();
+		return report;
+	}
+
+	/** Single-quotes a path for the remote shell. */
+	static String quote (String path) {
+		return "'" + path.replace ("'", "'\\''") + "'";
+	}
+
+	/**Sends files from the shared queue through one session and channel at a time.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	class Worker implements Runnable {
+		private final String remoteDirectory;
+		private final BlockingDeque<ScpFile> queue;
+		private final Report report;
+		private final LinkedList<Ack> pending = new LinkedList<Ack> ();
+		private final List<String> directories = new ArrayList<String> ();
+		private FileSender sender;
+		private ScpFile current;
+
+		Worker (String remoteDirectory, BlockingDeque<ScpFile> queue, Report report) {
+			this.remoteDirectory = remoteDirectory;
+			this.queue = queue;
+			this.report = report;
+		}
+
+		public void run () {
+			while (! queue.isEmpty () && ! Thread.currentThread ().isInterrupted ()) {
+				Session session;
+				try {
+					session = pool.borrow (user, host, port);
+				} catch (JSchException e) {
+					Utils.log ("SCP upload could not borrow a session: " + e.getMessage ());
+					return;
+				}
+				boolean healthy = false;
+				try {
+					healthy = send (session);
+				} finally {
+					if (healthy)
+						pool.release (session);
+					else
+						pool.invalidate (session);
+				}
+			}
+		}
+
+		/** Sends files through one channel, until the queue is empty or the channel breaks.
+		 *  @return <tt>true</tt> if the session is still usable.
+		 */
+		private boolean send (Session session) {
+			ChannelExec channel = null;
+			pending.clear ();
+			directories.clear ();
+			current = null;
+			try {
+				channel = (ChannelExec) session.openChannel ("exec");
+				channel.setCommand ("scp -r -t " + quote (remoteDirectory));
+				InputStream in = channel.getInputStream ();
+				OutputStream out = channel.getOutputStream ();
+				channel.connect ();
+				sender = new FileSender (channel, bufferSize);
+				String error = readAck (in);
+				if (error != null)
+					throw new IOException ("SCP refused to start: " + error);
+
+				while ((current = queue.poll ()) != null) {
+					changeDirectory (current.getDirectories (), out);
+					write (current, out);
+					current = null;
+					if (pending.size () >= window)
+						out.flush ();
+					while (pending.size () >= window || (! pending.isEmpty () && in.available () > 0))
+						receive (in);
+				}
+				changeDirectory (Collections.<String>emptyList (), out);
+				out.flush ();
+				while (! pending.isEmpty ())
+					receive (in);
+				out.close ();
+				return true;
+			}
+			catch (Desynchronized e) {
+				requeue (e.getMessage ());
+				return session.isConnected ();
+			}
+			catch (Exception e) {
+				requeue (e.toString ());
+				return false;
+			}
+			finally {
+				if (channel != null)
+					channel.disconnect ();
+			}
+		}
+
+		/** Leaves and enters remote directories with <tt>E</tt> and <tt>D</tt> directives. */
+		private void changeDirectory (List<String> target, OutputStream out) throws IOException {
+			int common = 0;
+			while (common < directories.size () && common < target.size () && directories.get (common).equals (target.get (common)))
+				common++;
+			while (directories.size () > common) {
+				directories.remove (directories.size () - 1);
+				directive (out, "E\n", null);
+			}
+			for (int i = common; i < target.size (); i++) {
+				directories.add (target.get (i));
+				directive (out, "D" + directoryMode + " 0 " + target.get (i) + "\n", null);
+			}
+		}
+
+		private void write (ScpFile file, OutputStream out) throws IOException {
+			FileInputStream data;
+			try {
+				data = new FileInputStream (file.getSource ());
+			} catch (IOException e) {
+				report.add (new FileResult (file, 0, 0, e.toString ()), listener);
+				return;
+			}
+
+			// The data is expected as soon as the header is, so that a failure while
+			// sending it leaves the file to be sent again.
+			Ack ack = new Ack (file, true);
+			try {
+				FileChannel source = data.getChannel ();
+				ack.bytes = source.size ();
+				Ack header = directive (out, "C" + file.getMode () + " " + ack.bytes + " " + file.getName () + "\n", file);
+				ack.start = header.start = System.nanoTime ();
+				pending.add (ack);
+				sender.send (source, 0, ack.bytes, out);
+			}
+			finally {
+				try { data.close (); } catch (IOException e) {}
+			}
+			out.write (0);
+		}
+
+		private Ack directive (OutputStream out, String line, ScpFile file) throws IOException {
+			out.write (line.getBytes ("UTF-8"));
+			Ack ack = new Ack (file, false);
+			pending.add (ack);
+			return ack;
+		}
+
+		/** Reads the next acknowledgement, and records the file it completes. */
+		private void receive (InputStream in) throws IOException {
+			Ack ack = pending.removeFirst ();
+			String error = readAck (in);
+			if (error == null) {
+				if (ack.data)
+					report.add (new FileResult (ack.file, ack.bytes, System.nanoTime () - ack.start, null), listener);
+				return;
+			}
+
+			// The sink consumed the whole file before rejecting it, so the stream is still in sync.
+			if (ack.data) {
+				report.add (new FileResult (ack.file, 0, System.nanoTime () - ack.start, error), listener);
+				return;
+			}
+
+			// A rejected header or directory leaves the stream out of sync.
+			if (ack.file != null) {
+				report.add (new FileResult (ack.file, 0, System.nanoTime () - ack.start, error), listener);
+				for (Ack next : pending)
+					if (next.file == ack.file)
+						next.file = null;
+			}
+			throw new Desynchronized (error);
+		}
+
+		/** @return the error reported by the sink, or <tt>null</tt> if it acknowledged. */
+		private String readAck (InputStream in) throws IOException {
+			int code = in.read ();
+			if (code == 0)
+				return null;
+			if (code == -1)
+				throw new IOException ("Unexpected end of data");
+			if (code == 1 || code == 2)
+				return readLine (in);
+			throw new IOException ("SCP terminated with error (code: " + code + ")");
+		}
+
+		/** Queues the files that were not acknowledged (or not yet sent) again, or gives up on them. */
+		private void requeue (String reason) {
+			List<ScpFile> unacknowledged = new ArrayList<ScpFile> ();
+			for (Ack ack : pending)
+				if (ack.data && ack.file != null)
+					unacknowledged.add (ack.file);
+			if (current != null && ! unacknowledged.contains (current))
+				unacknowledged.add (current);
+			current = null;
+			pending.clear ();
+			for (int i = unacknowledged.size () - 1; i >= 0; i--) {
+				ScpFile file = unacknowledged.get (i);
+				if (++file.attempts < MAX_ATTEMPTS)
+					queue.addFirst (file);
+				else
+					report.add (new FileResult (file, 0, 0, reason), listener);
+			}
+		}
+	}
+
+	private static String readLine (InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder ();
+		while (true) {
+			if (sb.length () > 8192)
+				throw new IOException ("Remote line too long");
+			int c = in.read ();
+			if (c < 0)
+				throw new IOException ("Remote terminated unexpectedly");
+			if (c == 0xa)
+				break;
+			sb.append ((char) c);
+		}
+		return sb.toString ();
+	}
+
+	/**An acknowledgement expected from the sink.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Ack {
+		ScpFile file;
+		final boolean data;
+		long start;
+		long bytes;
+
+		Ack (ScpFile file, boolean data) {
+			this.file = file;
+			this.data = data;
+		}
+	}
+
+	/**Thrown when the sink rejects a header, after which the channel cannot be used.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Desynchronized extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		Desynchronized (String message) {
+			super (message);
+		}
+	}
+
+	/**A local file, and where it goes relative to the remote directory.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class ScpFile implements Comparable<ScpFile> {
+		private final File source;
+		private final String path;
+		private final String mode;
+		int attempts;
+
+		public ScpFile (File source, String path) {
+			this (source, path, "0644");
+		}
+
+		/**
+		 * @param source  The local file.
+		 * @param path    The remote path, relative to the remote directory and separated by <tt>/</tt>.
+		 * @param mode    The remote file mode, in octal.
+		 */
+		public ScpFile (File source, String path, String mode) {
+			if (source == null || path == null || path.length () == 0)
+				throw new IllegalArgumentException ("source and path are required");
+			if (path.indexOf ('\n') >= 0 || path.startsWith ("/") || Arrays.asList (path.split ("/")).contains (".."))
+				throw new IllegalArgumentException ("Invalid remote path: " + path);
+			this.source = source;
+			this.path = path;
+			this.mode = mode;
+		}
+
+		public File getSource () { return source; }
+		public String getPath () { return path; }
+		public String getMode () { return mode; }
+
+		/** @return the file name, without its directories. */
+		public String getName () {
+			return path.substring (path.lastIndexOf ('/') + 1);
+		}
+
+		/** @return the directories that lead to the file. */
+		List<String> getDirectories () {
+			List<String> directories = new ArrayList<String> ();
+			for (String part : path.substring (0, path.lastIndexOf ('/') + 1).split ("/"))
+				if (part.length () > 0 && ! part.equals ("."))
+					directories.add (part);
+			return directories;
+		}
+
+		public int compareTo (ScpFile o) {
+			return path.compareTo (o.path);
+		}
+
+		public String toString () {
+			return source + " -> " + path;
+		}
+	}
+
+	/**The outcome of one file.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class FileResult {
+		private final ScpFile file;
+		private final long bytes;
+		private final long nanos;
+		private final String error;
+
+		public FileResult (ScpFile file, long bytes, long nanos, String error) {
+			this.file = file;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.error = error;
+		}
+
+		public ScpFile getFile () { return file; }
+		public long getBytes () { return bytes; }
+
+		/** @return the time from sending the header to receiving the final acknowledgement (in nanoseconds). */
+		public long getNanos () { return nanos; }
+
+		public String getError () { return error; }
+		public boolean isSuccessful () { return error == null; }
+
+		/** @return the throughput of this file, in bytes per second. */
+		public double getBytesPerSecond () {
+			return nanos > 0 ? bytes * 1e9 / nanos : 0;
+		}
+
+		public String toString () {
+			return file.getPath () + (error == null ? ": " + bytes + " bytes in " + (nanos / 1000000) + "ms" : ": " + error);
+		}
+	}
+
+	/**The outcome of an upload.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class Report {
+		private final long start = System.nanoTime ();
+		private final List<FileResult> results = new ArrayList<FileResult> ();
+		private long bytes;
+		private int failures;
+		private long nanos;
+
+		synchronized void add (FileResult result, Listener listener) {
+			results.add (result);
+			bytes += result.getBytes ();
+			if (! result.isSuccessful ())
+				failures++;
+			if (listener != null)
+				listener.transferred (result);
+		}
+
+		synchronized void finish () {
+			nanos = System.nanoTime () - start;
+		}
+
+		public synchronized List<FileResult> getResults () { return new ArrayList<FileResult> (results); }
+		public synchronized long getBytes () { return bytes; }
+		public synchronized int getFiles () { return results.size (); }
+		public synchronized int getFailures () { return failures; }
+
+		/** @return the wall-clock time of the upload (in nanoseconds). */
+		public synchronized long getNanos () { return nanos; }
+
+		/** @return the aggregate throughput, in bytes per second. */
+		public synchronized double getBytesPerSecond () {
+			return nanos > 0 ? bytes * 1e9 / nanos : 0;
+		}
+
+		public synchronized String toString () {
+			return "Report[files=" + results.size () + ", failures=" + failures + ", bytes=" + bytes
+				+ ", elapsed=" + (nanos / 1000000) + "ms, throughput=" + (long) getBytesPerSecond () + " B/s]";
+		}
+	}
+}
@@ -0,0 +1,562 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import name.khoobyar.joe.jsch.sspi.ContextAttributes;
+import name.khoobyar.joe.jsch.sspi.GSSContextSSPI;
+import name.khoobyar.joe.jsch.sspi.GSSKeyExchange;
+import name.khoobyar.joe.jsch.sspi.RefreshScheduler;
+import name.khoobyar.joe.jsch.sspi.Utils;
+
+/**Pool of connected, authenticated SSH sessions, keyed by <tt>user@host:port</tt>.
+ *
+ * <p>Sessions are borrowed with {@link #borrow(String, String, int)} and handed back
+ * with {@link #release(Session)}, so that a steady workload authenticates once per
+ * connection rather than once per operation.  Each key has at most {@link #getMaxSize()}
+ * sessions, borrowed or idle; once that many are in use, borrowers wait for one to be
+ * released.
+ *
+ * <p>A background thread closes sessions that have been idle for longer than
+ * {@link #getIdleTimeout()} (keeping {@link #getMinIdle()} of them per key), sends
+ * keepalives to idle sessions every {@link #getKeepAliveInterval()} milliseconds, and
+ * opens sessions to keep {@link #getMinIdle()} of them ready.  A session is never
+ * handed out after its maximum lifetime, which is {@link #getMaxLifetime()} or the
+ * expiry of its Kerberos context less {@link #EXPIRY_MARGIN}, whichever comes first.
+ * At that point (moved ahead by up to the jitter of the {@link RefreshScheduler}), the
+ * session is retired and its replacement is opened on the background thread, so
+ * borrowers do not wait for a new session at ticket renewal.  A replacement that would
+ * expire no later than the session it replaces (because the ticket has not been renewed
+ * yet) is closed again, and no more are opened for that key until
+ * {@link RefreshScheduler#getRetryDelay()} has passed.
+ *
+ * @author Joe Khoobyar
+ */
+public class SessionPool {
+
+	public static final int DEFAULT_MAX_SIZE = 8;
+	public static final int DEFAULT_MIN_IDLE = 0;
+	public static final long DEFAULT_IDLE_TIMEOUT = 300000L;
+	public static final long DEFAULT_MAX_LIFETIME = 3600000L;
+	public static final long DEFAULT_KEEPALIVE_INTERVAL = 60000L;
+	public static final long DEFAULT_BORROW_TIMEOUT = 30000L;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+
+	/** How long before its Kerberos context expires a session is retired (in milliseconds). */
+	public static final long EXPIRY_MARGIN = 60000L;
+
+	private final JSch jsch;
+	private final Properties config = new Properties ();
+	private final ConcurrentMap<Key, Partition> partitions = new ConcurrentHashMap<Key, Partition> ();
+	private final ConcurrentMap<Session, Entry> borrowed = new ConcurrentHashMap<Session, Entry> ();
+
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+	private volatile int minIdle = DEFAULT_MIN_IDLE;
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private volatile long maxLifetime = DEFAULT_MAX_LIFETIME;
+	private volatile long keepAliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+	private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	private ScheduledExecutorService maintainer;
+	private volatile boolean closed;
+
+	/** Creates a pool of sessions from a new {@link JSchSSPI}. */
+	public SessionPool () {
+		this (new JSchSSPI ());
+	}
+
+	/** Creates a pool of sessions from the given JSch, which should already be configured
+	 *  (with known hosts, and with {@link JSchSSPI#configure(JSch)}).
+	 */
+	public SessionPool (JSch jsch) {
+		if (jsch == null)
+			throw new IllegalArgumentException ("jsch");
+		this.jsch = jsch;
+		config.setProperty ("PreferredAuthentications", "gssapi-keyex,gssapi-with-mic");
+	}
+
+	public JSch getJSch () { return jsch; }
+
+	/** Sets a configuration option (see <tt>Session.setConfig</tt>) for sessions opened from now on. */
+	public void setConfig (String key, String value) {
+		synchronized (config) {
+			config.setProperty (key, value);
+		}
+	}
+
+	public String getConfig (String key) {
+		synchronized (config) {
+			return config.getProperty (key);
+		}
+	}
+
+	/** @return the maximum number of sessions, borrowed or idle, per key. */
+	public int getMaxSize () { return maxSize; }
+	public void setMaxSize (int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException ("maxSize must be positive");
+		this.maxSize = maxSize;
+	}
+
+	/** @return the number of idle sessions kept ready per key. */
+	public int getMinIdle () { return minIdle; }
+	public void setMinIdle (int minIdle) { this.minIdle = Math.max (minIdle, 0); }
+
+	/** @return how long a session may be idle before it is closed (in milliseconds). */
+	public long getIdleTimeout () { return idleTimeout; }
+	public void setIdleTimeout (long idleTimeout) { this.idleTimeout = idleTimeout; }
+
+	/** @return how long a session may be used for at most (in milliseconds). */
+	public long getMaxLifetime () { return maxLifetime; }
+	public void setMaxLifetime (long maxLifetime) { this.maxLifetime = maxLifetime; }
+
+	/** @return how often idle sessions are checked with a keepalive (in milliseconds). */
+	public long getKeepAliveInterval () { return keepAliveInterval; }
+	public void setKeepAliveInterval (long keepAliveInterval) { this.keepAliveInterval = keepAliveInterval; }
+
+	/** @return how long {@link #borrow(String, String, int)} waits for a session (in milliseconds). */
+	public long getBorrowTimeout () { return borrowTimeout; }
+	public void setBorrowTimeout (long borrowTimeout) { this.borrowTimeout = borrowTimeout; }
+
+	/** @return the timeout used to connect new sessions (in milliseconds). */
+	public int getConnectTimeout () { return connectTimeout; }
+	public void setConnectTimeout (int connectTimeout) { this.connectTimeout = connectTimeout; }
+
+	/** Borrows a connected session, waiting up to {@link #getBorrowTimeout()} milliseconds for one. */
+	public Session borrow (String user, String host, int port) throws JSchException {
+		return borrow (user, host, port, borrowTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/** Borrows a connected session.  It must be handed back with {@link #release(Session)}
+	 *  or {@link #invalidate(Session)}.
+	 */
+	public Session borrow (String user, String host, int port, long timeout, TimeUnit unit) throws JSchException {
+		if (closed)
+			throw new IllegalStateException ("The session pool is closed");
+		startMaintainer ();
+
+		Partition partition = getPartition (new Key (user, host, port));
+		long deadline = System.nanoTime () + unit.toNanos (timeout);
+		for (;;) {
+			Entry entry = partition.take (maxSize, deadline);
+			if (entry == null)
+				entry = open (partition);
+			else if (! check (entry, System.currentTimeMillis ())) {
+				destroy (partition, entry);
+				continue;
+			}
+			borrowed.put (entry.session, entry);
+			return entry.session;
+		}
+	}
+
+	/** Hands a borrowed session back to the pool. */
+	public void release (Session session) {
+		Entry entry = borrowed.remove (session);
+		if (entry == null) {
+			session.disconnect ();
+			return;
+		}
+		Partition partition = entry.partition;
+		long now = System.currentTimeMillis ();
+		if (closed || ! session.isConnected () || now >= entry.expires)
+			destroy (partition, entry);
+		else {
+			entry.lastUsed = now;
+			partition.putIdle (entry);
+		}
+	}
+
+	/** Closes a borrowed session that is broken, instead of handing it back to the pool. */
+	public void invalidate (Session session) {
+		Entry entry = borrowed.remove (session);
+		if (entry == null)
+			session.disconnect ();
+		else
+			destroy (entry.partition, entry);
+	}
+
+	/** Closes every idle session, and every borrowed session once it is released. */
+	public void close () {
+		closed = true;
+		synchronized (this) {
+			if (maintainer != null)
+				maintainer.shutdownNow ();
+			maintainer = null;
+		}
+		for (Partition partition : partitions.values ())
+			for (Entry entry : partition.drain ())
+				destroy (partition, entry);
+	}
+
+	/** @return the number of idle sessions in the pool. */
+	public int getIdleCount () {
+		int count = 0;
+		for (Partition partition : partitions.values ())
+			count += partition.getIdleCount ();
+		return count;
+	}
+
+	/** @return the number of borrowed sessions. */
+	public int getActiveCount () {
+		return borrowed.size ();
+	}
+
+	/** Closes idle sessions that timed out or expired, sends keepalives to the rest,
+	 *  and opens sessions to keep {@link #getMinIdle()} of them ready.
+	 */
+	public void maintain () {
+		long now = System.currentTimeMillis ();
+		for (Partition partition : partitions.values ()) {
+			for (Entry entry : partition.evict (now, idleTimeout, minIdle))
+				destroy (partition, entry);
+			for (Entry entry : partition.idleSnapshot ())
+				if (now - entry.lastChecked >= keepAliveInterval && partition.remove (entry)) {
+					if (check (entry, now))
+						partition.putIdle (entry);
+					else
+						destroy (partition, entry);
+				}
+			replenish (partition, now);
+		}
+	}
+
+	/** Opens sessions until the partition has {@link #getMinIdle()} idle ones.  A session that
+	 *  would expire no later than <tt>after</tt> (in milliseconds since the epoch) is closed
+	 *  again, and the partition is not replenished until the retry delay has passed.
+	 */
+	private void replenish (Partition partition, long after) {
+		while (! closed && System.currentTimeMillis () >= partition.retryAt
+				&& partition.reserveIdle (minIdle, maxSize)) {
+			Entry entry;
+			try {
+				entry = open (partition);
+			} catch (JSchException e) {
+				Utils.log ("Failed to open a pooled session to " + partition.key + ": " + e.getMessage ());
+				break;
+			}
+			if (entry.expires <= Math.max (after, System.currentTimeMillis ())) {
+				Utils.log ("New pooled session to " + partition.key + " expires no later than the one it replaces; retrying later");
+				partition.retryAt = System.currentTimeMillis () + RefreshScheduler.getDefault ().getRetryDelay ();
+				destroy (partition, entry);
+				break;
+			}
+			partition.putIdle (entry);
+		}
+	}
+
+	/** Retires a session shortly before its lifetime ends, and opens replacements ahead of time,
+	 *  so that borrowers never wait for a session to be authenticated with a renewed ticket.
+	 */
+	private void retire (Entry entry) {
+		if (closed)
+			return;
+		long expires = entry.expires;
+		entry.expires = Math.min (expires, System.currentTimeMillis ());
+		Partition partition = entry.partition;
+		if (partition.remove (entry))
+			destroy (partition, entry);
+		replenish (partition, expires);
+	}
+
+	/** Checks the health of an idle session, by sending a keepalive if it has not been checked recently. */
+	private boolean check (Entry entry, long now) {
+		if (! entry.session.isConnected () || now >= entry.expires)
+			return false;
+		if (now - entry.lastChecked >= keepAliveInterval) {
+			try {
+				entry.session.sendKeepAliveMsg ();
+			} catch (Exception e) {
+				return false;
+			}
+			entry.lastChecked = now;
+		}
+		return true;
+	}
+
+	/** Connects a new session, for which room was already reserved in the partition. */
+	private Entry open (Partition partition) throws JSchException {
+		Key key = partition.key;
+		Session session = null;
+		try {
+			session = jsch.getSession (key.user, key.host, key.port);
+			synchronized (config) {
+				session.setConfig (config);
+			}
+			GSSContextSSPI.takeLastAttributes ();
+			try {
+				session.connect (connectTimeout);
+			} finally {
+				GSSKeyExchange.discard (session);
+			}
+
+			long now = System.currentTimeMillis ();
+			long expires = maxLifetime > 0 ? now + maxLifetime : Long.MAX_VALUE;
+			ContextAttributes attributes = GSSContextSSPI.takeLastAttributes ();
+			if (attributes != null && attributes.getExpiry () != Long.MAX_VALUE)
+				expires = Math.min (expires, attributes.getExpiry () - EXPIRY_MARGIN);
+			final Entry entry = new Entry (partition, session, now, expires);
+			entry.retirement = RefreshScheduler.getDefault ().schedule (expires, 0, new Runnable () {
+				public void run () {
+					execute (new Runnable () {
+						public void run () {
+							retire (entry);
+						}
+					});
+				}
+			});
+			session = null;
+			return entry;
+		}
+		finally {
+			if (session != null) {
+				session.disconnect ();
+				partition.unreserve ();
+			}
+		}
+	}
+
+	private void destroy (Partition partition, Entry entry) {
+		RefreshScheduler.getDefault ().cancel (entry.retirement);
+		try { entry.session.disconnect (); }
+		finally { partition.unreserve (); }
+	}
+
+	private Partition getPartition (Key key) {
+		Partition partition = partitions.get (key);
+		if (partition == null) {
+			Partition created = new Partition (key);
+			partition = partitions.putIfAbsent (key, created);
+			if (partition == null)
+				partition = created;
+		}
+		return partition;
+	}
+
+	private synchronized void startMaintainer () {
+		if (maintainer != null || closed)
+			return;
+		long interval = Math.max (1000L, Math.min (keepAliveInterval, idleTimeout) / 2);
+		maintainer = Executors.newSingleThreadScheduledExecutor (new ThreadFactory () {
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, "SSH session pool maintenance");
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+		maintainer.scheduleWithFixedDelay (new Runnable () {
+			public void run () {
+				try { maintain (); }
+				catch (RuntimeException e) { Utils.log ("Session pool maintenance failed: " + e); }
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/** Runs a task on the maintenance thread, so that slow connects never hold up the
+	 *  {@link RefreshScheduler}.  Nothing happens once the pool is closed.
+	 */
+	private synchronized void execute (final Runnable task) {
+		if (maintainer == null || closed)
+			return;
+		maintainer.execute (new Runnable () {
+			public void run () {
+				try { task.run (); }
+				catch (RuntimeException e) { Utils.log ("Session pool maintenance failed: " + e); }
+			}
+		});
+	}
+
+	/**Identifies the sessions that may be used interchangeably.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Key {
+		final String user;
+		final String host;
+		final int port;
+
+		Key (String user, String host, int port) {
+			if (user == null || host == null)
+				throw new IllegalArgumentException ("user and host are required");
+			this.user = user;
+			this.host = host;
+			this.port = port;
+		}
+
+		public boolean equals (Object o) {
+			if (! (o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return port == k.port && user.equals (k.user) && host.equalsIgnoreCase (k.host);
+		}
+
+		public int hashCode () {
+			return (user.hashCode () * 31 + host.toLowerCase ().hashCode ()) * 31 + port;
+		}
+
+		public String toString () {
+			return user + "@" + host + ":" + port;
+		}
+	}
+
+	/**A pooled session.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Entry {
+		final Partition partition;
+		final Session session;
+		volatile long expires;
+		volatile long lastUsed;
+		volatile long lastChecked;
+		volatile Future<?> retirement;
+
+		Entry (Partition partition, Session session, long now, long expires) {
+			this.partition = partition;
+			this.session = session;
+			this.expires = expires;
+			this.lastUsed = this.lastChecked = now;
+		}
+	}
+
+	/**The sessions for one key.  Idle sessions are kept most recently used first, so that
+	 * the least recently used ones age out.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Partition {
+		final Key key;
+		private final ReentrantLock lock = new ReentrantLock ();
+		private final Condition available = lock.newCondition ();
+		private final LinkedList<Entry> idle = new LinkedList<Entry> ();
+		private int total;
+		volatile long retryAt;
+
+		Partition (Key key) {
+			this.key = key;
+		}
+
+		/** Takes an idle session, or returns <tt>null</tt> after reserving room for a new one. */
+		Entry take (int maxSize, long deadline) throws JSchException {
+			lock.lock ();
+			try {
+				for (;;) {
+					if (! idle.isEmpty ())
+						return idle.removeFirst ();
+					if (total < maxSize) {
+						total++;
+						return null;
+					}
+					long remaining = deadline - System.nanoTime ();
+					if (remaining <= 0)
+						throw new JSchException ("Timed out waiting for a pooled session to " + key);
+					try {
+						available.awaitNanos (remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread ().interrupt ();
+						throw new JSchException ("Interrupted while waiting for a pooled session to " + key, e);
+					}
+				}
+			}
+			finally { lock.unlock (); }
+		}
+
+		/** Reserves room for a new idle session, if there are fewer than <tt>minIdle</tt>. */
+		boolean reserveIdle (int minIdle, int maxSize) {
+			lock.lock ();
+			try {
+				if (idle.size () >= minIdle || total >= maxSize)
+					return false;
+				total++;
+				return true;
+			}
+			finally { lock.unlock (); }
+		}
+
+		void putIdle (Entry entry) {
+			lock.lock ();
+			try {
+				idle.addFirst (entry);
+				available.signal ();
+			}
+			finally { lock.unlock (); }
+		}
+
+		boolean remove (Entry entry) {
+			lock.lock ();
+			try { return idle.remove (entry); }
+			finally { lock.unlock (); }
+		}
+
+		void unreserve () {
+			lock.lock ();
+			try {
+				total--;
+				available.signal ();
+			}
+			finally { lock.unlock (); }
+		}
+
+		/** Removes idle sessions that timed out (beyond the first <tt>minIdle</tt>) or expired. */
+		List<Entry> evict (long now, long idleTimeout, int minIdle) {
+			List<Entry> evicted = new ArrayList<Entry> ();
+			lock.lock ();
+			try {
+				int kept = 0;
+				for (Iterator<Entry> i = idle.iterator (); i.hasNext (); ) {
+					Entry entry = i.next ();
+					boolean timedOut = kept >= minIdle && now - entry.lastUsed >= idleTimeout;
+					if (timedOut || now >= entry.expires) {
+						i.remove ();
+						evicted.add (entry);
+					} else
+						kept++;
+				}
+			}
+			finally { lock.unlock (); }
+			return evicted;
+		}
+
+		List<Entry> idleSnapshot () {
+			lock.lock ();
+			try { return new ArrayList<Entry> (idle); }
+			finally { lock.unlock (); }
+		}
+
+		List<Entry> drain () {
+			lock.lock ();
+			try {
+				List<Entry> drained = new ArrayList<Entry> (idle);
+				idle.clear ();
+				return drained;
+			}
+			finally { lock.unlock (); }
+		}
+
+		int getIdleCount () {
+			lock.lock ();
+			try { return idle.size (); }
+			finally { lock.unlock (); }
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch;
+
+import com.jcraft.jsch.JSch;
+
+import name.khoobyar.joe.jsch.sspi.GSSContextSSPI;
+import name.khoobyar.joe.jsch.sspi.SPNResolver;
+import name.khoobyar.joe.jsch.sspi.SimulatedBackend;
+
+/**Loads every class that starting up and authenticating needs, without connecting anywhere.
+ *
+ * <p>Short-lived tools spend much of their time loading classes.  Running this class
+ * with <tt>-XX:DumpLoadedClassList</tt> records the classes of the library, JSch and JNA
+ * in the order they are needed, so that they can be put in a class data sharing archive:
+ *
+ * <pre>
+ *   java -XX:DumpLoadedClassList=jsch-sspi.classlist -cp ... name.khoobyar.joe.jsch.StartupProfile
+ *   java -Xshare:dump -XX:SharedClassListFile=jsch-sspi.classlist -XX:SharedArchiveFile=jsch-sspi.jsa -cp ...
+ *   java -XX:SharedArchiveFile=jsch-sspi.jsa -cp ... your.Tool
+ * </pre>
+ *
+ * <p>The native library is bound through {@link JSchSSPI#prepare()} as usual, and a whole
+ * handshake is run against a {@link SimulatedBackend}, which loads the classes of the
+ * authentication path even where no Kerberos credentials are available.  The class path
+ * must only hold jars, and must be the same when the archive is dumped and when it is used.
+ *
+ * @author Joe Khoobyar
+ */
+public class StartupProfile {
+
+	private static final String HOST = "startup-profile";
+
+	public static void main (String args[]) throws Exception {
+		long start = System.nanoTime ();
+		JSch jsch = new JSchSSPI ();
+		boolean ready = JSchSSPI.awaitReady ();
+		jsch.getSession (System.getProperty ("user.name"), HOST, 22);
+
+		// Authenticate against the simulated backend, to load the rest of the path.
+		SPNResolver.getDefault ().addAlias (HOST, HOST + ".invalid");
+		GSSContextSSPI context = new GSSContextSSPI (new SimulatedBackend (), null);
+		try {
+			context.create (System.getProperty ("user.name"), HOST);
+			byte token[] = new byte[] { 1 };
+			context.init (null, 0, 0);
+			while (! context.isEstablished ())
+				context.init (token, 0, token.length);
+			context.getMIC (token, 0, token.length);
+		}
+		finally {
+			context.dispose ();
+		}
+
+		// Load the classes that JSch looks up by name.
+		for (String name : new String[] { "kex", "userauth.gssapi-with-mic", "gssapi-with-mic.krb5", "random", "sha-1", "dh" }) {
+			String value = JSch.getConfig (name);
+			if (value == null)
+				continue;
+			for (String item : value.split (","))
+				load (JSch.getConfig (item) != null ? JSch.getConfig (item) : item);
+		}
+
+		System.out.println ("Startup profile complete in " + (System.nanoTime () - start) / 1000000
+			+ "ms (SSPI " + (ready ? "ready" : "unavailable") + ")");
+	}
+
+	private static void load (String className) {
+		try {
+			Class.forName (className);
+		} catch (Throwable e) {
+			// Not a class name, or not available on this platform.
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+/**Attributes of an established security context.
+ *
+ * <p>These are queried once, as soon as the context is established (see
+ * {@link SSPIBackend#queryContextAttributes}).  Attributes that the security
+ * package refuses to report are left as <tt>0</tt> or <tt>null</tt>.
+ *
+ * @author Joe Khoobyar
+ */
+public class ContextAttributes {
+
+	public static final int ISC_RET_DELEGATE = 0x00000001;
+	public static final int ISC_RET_MUTUAL_AUTH = 0x00000002;
+	public static final int ISC_RET_REPLAY_DETECT = 0x00000004;
+	public static final int ISC_RET_SEQUENCE_DETECT = 0x00000008;
+	public static final int ISC_RET_CONFIDENTIALITY = 0x00000010;
+	public static final int ISC_RET_INTEGRITY = 0x00010000;
+
+	private final int flags;
+	private final long expiry;
+	private final int maxToken;
+	private final int maxSignature;
+	private final int blockSize;
+	private final int securityTrailer;
+	private final String userName;
+	private final String clientName;
+	private final String serverName;
+
+	public ContextAttributes (int flags, long expiry, int maxToken, int maxSignature, int blockSize,
+	                          int securityTrailer, String userName, String clientName, String serverName) {
+		this.flags = flags;
+		this.expiry = expiry;
+		this.maxToken = maxToken;
+		this.maxSignature = maxSignature;
+		this.blockSize = blockSize;
+		this.securityTrailer = securityTrailer;
+		this.userName = userName;
+		this.clientName = clientName;
+		this.serverName = serverName;
+	}
+
+	/** @return the context attributes (<tt>ISC_RET_*</tt>) granted by the security package. */
+	public int getFlags () { return flags; }
+
+	/** @return <tt>true</tt> if all of the given <tt>ISC_RET_*</tt> flags were granted. */
+	public boolean isGranted (int flags) { return (this.flags & flags) == flags; }
+
+	/** @return the expiry of the context, in milliseconds since the epoch. */
+	public long getExpiry () { return expiry; }
+
+	/** @return <tt>true</tt> if the context has expired at <tt>now</tt>. */
+	public boolean isExpired (long now) { return expiry != Long.MAX_VALUE && now >= expiry; }
+
+	public int getMaxToken () { return maxToken; }
+	public int getMaxSignature () { return maxSignature; }
+	public int getBlockSize () { return blockSize; }
+	public int getSecurityTrailer () { return securityTrailer; }
+	public String getUserName () { return userName; }
+	public String getClientName () { return clientName; }
+	public String getServerName () { return serverName; }
+
+	public String toString () {
+		return "ContextAttributes[flags=0x" + Integer.toHexString (flags) + ", expiry=" + expiry
+			+ ", maxSignature=" + maxSignature + ", securityTrailer=" + securityTrailer
+			+ ", client=" + clientName + ", server=" + serverName + "]";
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jcraft.jsch.JSchException;
+import com.sun.jna.platform.win32.Sspi.CredHandle;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+
+/**Process-wide, reference-counted cache of outbound SSPI credentials handles.
+ *
+ * <p>Acquiring a credentials handle and resolving its principal name both
+ * require a round trip to the LSA.  Every context created from the same
+ * logon session can share one handle, so the handle is kept here until it
+ * expires (according to the <tt>TimeStamp</tt> returned when it was acquired)
+ * or until the logon session of the calling thread, or the backend, changes.
+ * A handle that is retired is only freed once the last context using it has
+ * released it.  Handles are replaced shortly before they expire, by the
+ * {@link RefreshScheduler}, once a newly acquired handle expires later than the
+ * one it replaces; until the ticket is renewed, the refresh is retried instead.
+ *
+ * <p>Handles are acquired without holding the lock of the cache, so that a slow
+ * round trip does not hold up contexts whose handle is already cached.  If two
+ * threads acquire a handle at once, the first one installed is kept, and the
+ * other is freed.
+ *
+ * @author Joe Khoobyar
+ */
+public class CredentialCache {
+
+	/** How long before their expiry cached credentials are no longer handed out (in milliseconds). */
+	public static final long EXPIRY_MARGIN = 60000L;
+
+	private static final Map<String, Credential> credentials = new HashMap<String, Credential> ();
+
+	/** Acquires a shared outbound credentials handle for the given security package,
+	 *  through the default backend.  Every successful call must be balanced by a call to
+	 *  {@link #release(Credential)}.
+	 */
+	public static Credential acquire (String packageName) throws JSchException {
+		return acquire (SSPIBackend.getDefault (), packageName);
+	}
+
+	/** Acquires a shared outbound credentials handle for the given security package.
+	 *  Every successful call must be balanced by a call to {@link #release(Credential)}.
+	 */
+	public static Credential acquire (SSPIBackend backend, String packageName) throws JSchException {
+		long logonId = backend.getLogonSessionId ();
+		synchronized (credentials) {
+			Credential credential = credentials.get (packageName);
+			if (credential != null) {
+				if (isUsable (credential, backend, logonId)) {
+					credential.references++;
+					return credential;
+				}
+				Utils.log ("Retiring cached " + packageName + " credentials");
+				retire (credential);
+			}
+		}
+
+		// Acquire outside the lock, so that a slow round trip does not hold up cache hits.
+		Credential fresh = acquireCredential (backend, packageName, logonId);
+		Credential credential;
+		synchronized (credentials) {
+			credential = credentials.get (packageName);
+			if (credential == null || ! isUsable (credential, backend, logonId)) {
+				if (credential != null)
+					retire (credential);
+				fresh.references++;
+				credentials.put (packageName, fresh);
+				scheduleRefresh (fresh);
+				return fresh;
+			}
+
+			// Another thread installed its handle first.
+			credential.references++;
+			fresh.retired = true;
+		}
+		free (fresh);
+		return credential;
+	}
+
+	/** Replaces a cached credentials handle with a newly acquired one, ahead of its expiry.
+	 *  Nothing happens if the handle is no longer cached, or if the calling thread belongs
+	 *  to another logon session.  If the new handle does not expire later than the cached
+	 *  one (because the ticket has not been renewed yet), it is freed and the refresh is
+	 *  retried after {@link RefreshScheduler#getRetryDelay()}.
+	 *  @return <tt>true</tt> if the handle was replaced.
+	 */
+	public static boolean refresh (Credential credential) {
+		if (credential.backend.getLogonSessionId () != credential.logonId)
+			return false;
+		synchronized (credentials) {
+			if (credential.retired || credentials.get (credential.packageName) != credential)
+				return false;
+		}
+
+		// Acquire outside the lock, so that a slow round trip does not hold up cache hits.
+		Credential fresh;
+		try {
+			fresh = acquireCredential (credential.backend, credential.packageName, credential.logonId);
+		} catch (JSchException e) {
+			Utils.log ("Failed to refresh " + credential.packageName + " credentials: " + e.getMessage ());
+			scheduleRetry (credential);
+			return false;
+		}
+		if (fresh.expiry <= credential.expiry) {
+			Utils.log ("Refreshed " + credential.packageName + " credentials do not expire any later; retrying later");
+			free (fresh);
+			scheduleRetry (credential);
+			return false;
+		}
+		synchronized (credentials) {
+			if (! credential.retired && credentials.get (credential.packageName) == credential) {
+				Utils.log ("Refreshed " + credential.packageName + " credentials");
+				retire (credential);
+				credentials.put (fresh.packageName, fresh);
+				scheduleRefresh (fresh);
+				return true;
+			}
+
+			// The handle was replaced or retired while the new one was acquired.
+			fresh.retired = true;
+		}
+		free (fresh);
+		return false;
+	}
+
+	private static boolean isUsable (Credential credential, SSPIBackend backend, long logonId) {
+		return credential.backend == backend && credential.logonId == logonId
+			&& ! credential.isExpired (System.currentTimeMillis ());
+	}
+
+	private static void scheduleRefresh (final Credential credential) {
+		RefreshScheduler.getDefault ().schedule (credential.expiry, new Runnable () {
+			public void run () {
+				refresh (credential);
+			}
+		});
+	}
+
+	private static void scheduleRetry (final Credential credential) {
+		RefreshScheduler.getDefault ().retry (new Runnable () {
+			public void run () {
+				refresh (credential);
+			}
+		});
+	}
+
+	/** Releases a credentials handle obtained from {@link #acquire(String)}. */
+	public static void release (Credential credential) {
+		if (credential == null)
+			return;
+		synchronized (credentials) {
+			if (--credential.references <= 0 && credential.retired)
+				free (credential);
+		}
+	}
+
+	/** Stops handing out the given credentials handle; it is freed once it is no longer in use. */
+	public static void invalidate (Credential credential) {
+		if (credential == null)
+			return;
+		synchronized (credentials) {
+			retire (credential);
+		}
+	}
+
+	/** Retires every cached credentials handle. */
+	public static void clear () {
+		synchronized (credentials) {
+			for (Credential credential : credentials.values ().toArray (new Credential[credentials.size ()]))
+				retire (credential);
+		}
+	}
+
+	private static void retire (Credential credential) {
+		if (credentials.get (credential.packageName) == credential)
+			credentials.remove (credential.packageName);
+		credential.retired = true;
+		if (credential.references <= 0)
+			free (credential);
+	}
+
+	private static void free (Credential credential) {
+		if (credential.handle!=null && ! credential.handle.isNull ()) {
+			long start = SSPIMetrics.start ();
+			int result = credential.backend.freeCredentialsHandle (credential.handle);
+			SSPIMetrics.record (SSPIMetrics.Phase.FREE_CREDENTIALS, 0, start, result);
+			SSPIMetrics.credentialFreed ();
+		}
+		credential.handle = null;
+	}
+
+	private static Credential acquireCredential (SSPIBackend backend, String packageName, long logonId) throws JSchException {
+		CredHandle handle = new CredHandle ();
+		TimeStamp stamp = new TimeStamp ();
+		String name = null;
+
+		// Get the credentials handle.
+		long start = SSPIMetrics.start ();
+		int result = backend.acquireCredentialsHandle (packageName, handle, stamp);
+		SSPIMetrics.record (SSPIMetrics.Phase.ACQUIRE_CREDENTIALS, 0, start, result);
+		Utils.assertOk (result, "AcquireCredentialsHandle");
+		try {
+
+			// Get principal name for the credentials.
+			name = backend.getUserPrincipalName ();
+			if (name != null) {
+				int i = name.indexOf ('\\');
+				if (i >= 0)
+					name = name.substring (i + 1);
+			}
+		}
+		finally {
+			// Clean up on error...
+			if (name == null) {
+				backend.freeCredentialsHandle (handle);
+				handle = null;
+			}
+		}
+
+		if (handle==null || handle.isNull ())
+			throw new JSchException ("Failed to acquire a credentials handle");
+		SSPIMetrics.credentialAcquired ();
+		return new Credential (backend, packageName, logonId, handle, stamp, name);
+	}
+
+	/**A shared credentials handle and the principal name it was acquired for.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class Credential {
+		final SSPIBackend backend;
+		final String packageName;
+		final long logonId;
+		final TimeStamp stamp;
+		final long expiry;
+		final String name;
+		final String krbName;
+		CredHandle handle;
+		int references;
+		boolean retired;
+
+		Credential (SSPIBackend backend, String packageName, long logonId, CredHandle handle, TimeStamp stamp, String name) {
+			this.backend = backend;
+			this.packageName = packageName;
+			this.logonId = logonId;
+			this.handle = handle;
+			this.stamp = stamp;
+			this.expiry = Utils.toMillis (stamp);
+			this.name = name;
+			this.krbName = name.replace ('@', '/');
+		}
+
+		public SSPIBackend getBackend () { return backend; }
+		public CredHandle getHandle () { return handle; }
+		public TimeStamp getStamp () { return stamp; }
+		public String getName () { return name; }
+		public String getKrbName () { return krbName; }
+
+		/** @return the expiry of these credentials, in milliseconds since the epoch. */
+		public long getExpiry () { return expiry; }
+
+		/** @return <tt>true</tt> if these credentials expire within {@link CredentialCache#EXPIRY_MARGIN} of <tt>now</tt>. */
+		public boolean isExpired (long now) {
+			return expiry != Long.MAX_VALUE && now + EXPIRY_MARGIN >= expiry;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import name.khoobyar.joe.jsch.sspi.SSPIMetrics.Phase;
+
+/**How long each blocking phase of authentication may take, in milliseconds.
+ *
+ * <p>Canonicalizing the host name, acquiring credentials and each leg of
+ * <tt>InitializeSecurityContext</tt> may wait on a resolver or a KDC.  When one of them
+ * has a deadline, {@link GSSContextSSPI} runs it on the {@link SSPIExecutor}, and gives
+ * up with an {@link SSPITimeoutException} once the deadline passes.  A deadline of
+ * <tt>0</tt> means that the phase runs on the calling thread and may take as long as
+ * it takes.
+ *
+ * <p>JSch creates its GSS contexts on the thread that connects a session, so the
+ * deadlines are taken from that thread (see {@link #setCurrent(Deadlines)}), or else
+ * from the <tt>name.khoobyar.joe.jsch.sspi.timeout.canonicalize</tt>,
+ * <tt>.credentials</tt>, <tt>.init</tt> and <tt>.connect</tt> system properties, which
+ * are all <tt>0</tt> by default.
+ *
+ * @author Joe Khoobyar
+ */
+public final class Deadlines {
+
+	public static final String PROPERTY_PREFIX = "name.khoobyar.joe.jsch.sspi.timeout.";
+
+	/** No deadlines at all. */
+	public static final Deadlines NONE = new Deadlines (0, 0, 0, 0);
+
+	private static final ThreadLocal<Deadlines> current = new ThreadLocal<Deadlines> ();
+
+	private final long canonicalize;
+	private final long credentials;
+	private final long initialize;
+	private final long connect;
+
+	/**
+	 * @param canonicalize  How long canonicalizing the host name may take.
+	 * @param credentials   How long acquiring the credentials handle may take.
+	 * @param initialize    How long each leg of <tt>InitializeSecurityContext</tt> may take.
+	 * @param connect       The timeout passed to <tt>Session.connect</tt>, which bounds the
+	 *                      socket connect and each read from the server.
+	 */
+	public Deadlines (long canonicalize, long credentials, long initialize, long connect) {
+		if (canonicalize < 0 || credentials < 0 || initialize < 0 || connect < 0)
+			throw new IllegalArgumentException ("Deadlines must not be negative");
+		this.canonicalize = canonicalize;
+		this.credentials = credentials;
+		this.initialize = initialize;
+		this.connect = connect;
+	}
+
+	/** @return the deadlines given by the system properties. */
+	public static Deadlines getDefault () {
+		return Holder.INSTANCE;
+	}
+
+	/** @return the deadlines of the calling thread, or else the default ones. */
+	public static Deadlines current () {
+		Deadlines deadlines = current.get ();
+		return deadlines != null ? deadlines : getDefault ();
+	}
+
+	/** Sets the deadlines of the calling thread.
+	 *  @param deadlines  The deadlines, or <tt>null</tt> to use the default ones again.
+	 *  @return the deadlines the calling thread had before, or <tt>null</tt>.
+	 */
+	public static Deadlines setCurrent (Deadlines deadlines) {
+		Deadlines previous = current.get ();
+		if (deadlines == null)
+			current.remove ();
+		else
+			current.set (deadlines);
+		return previous;
+	}
+
+	/** @return the deadline of a phase, or <tt>0</tt> if it has none. */
+	public long get (Phase phase) {
+		switch (phase) {
+		case CANONICALIZE_HOST: return canonicalize;
+		case ACQUIRE_CREDENTIALS: return credentials;
+		case INITIALIZE_CONTEXT: return initialize;
+		default: return 0;
+		}
+	}
+
+	public long getConnect () { return connect; }
+
+	/** @return <tt>true</tt> if any phase has a deadline. */
+	public boolean isBounded () {
+		return canonicalize > 0 || credentials > 0 || initialize > 0;
+	}
+
+	public String toString () {
+		return "Deadlines[canonicalize=" + canonicalize + "ms, credentials=" + credentials
+			+ "ms, init=" + initialize + "ms, connect=" + connect + "ms]";
+	}
+
+	private static class Holder {
+		static final Deadlines INSTANCE = new Deadlines (
+			Long.getLong (PROPERTY_PREFIX + "canonicalize", 0L).longValue (),
+			Long.getLong (PROPERTY_PREFIX + "credentials", 0L).longValue (),
+			Long.getLong (PROPERTY_PREFIX + "init", 0L).longValue (),
+			Long.getLong (PROPERTY_PREFIX + "connect", 0L).longValue ()
+		);
+	}
+}
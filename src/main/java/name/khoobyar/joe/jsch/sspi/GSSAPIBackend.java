@@ -0,0 +1,499 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import static com.sun.jna.platform.win32.Sspi.ISC_REQ_INTEGRITY;
+import static com.sun.jna.platform.win32.Sspi.MAX_TOKEN_SIZE;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_BUFFER_TOO_SMALL;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_INVALID_HANDLE;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_INVALID_TOKEN;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_OK;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_OUT_OF_SEQUENCE;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_SECPKG_NOT_FOUND;
+import static com.sun.jna.platform.win32.W32Errors.SEC_I_CONTINUE_NEEDED;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Logger;
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.platform.win32.Sspi.CredHandle;
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+import com.sun.jna.platform.win32.Sspi.SecBuffer;
+import com.sun.jna.platform.win32.Sspi.SecHandle;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+import name.khoobyar.joe.jsch.sspi.Utils.SecBufferDesc;
+
+/**Backend that calls the native GSS-API of MIT Kerberos (<tt>libgssapi_krb5</tt>).
+ *
+ * <p>This lets {@link GSSContextSSPI} authenticate on Linux and other Unix systems from
+ * the default credential cache (e.g. after <tt>kinit</tt>), without JGSS or a JAAS login.
+ * GSS-API status codes are translated into the nearest SSPI result codes, and GSS-API
+ * credentials and contexts are carried in the SSPI handles, so that credentials are
+ * shared through {@link CredentialCache} as they are on Windows.
+ *
+ * <p>Service principal names of the form <tt>service/host</tt> are imported as host-based
+ * service names (<tt>service@host</tt>), so that the realm comes from the Kerberos
+ * configuration; names that include a realm are imported as Kerberos principal names.
+ * The library can be changed with the <tt>name.khoobyar.joe.jsch.sspi.gssapi.library</tt>
+ * system property.
+ *
+ * @author Joe Khoobyar
+ */
+public class GSSAPIBackend
+	extends SSPIBackend
+{
+	/** System property that names the GSS-API library. */
+	public static final String LIBRARY_PROPERTY = "name.khoobyar.joe.jsch.sspi.gssapi.library";
+
+	/** Size of the largest MIC we expect (RFC 4121 with the largest checksum, with room to spare). */
+	public static final int MAX_SIGNATURE = 64;
+
+	static final int GSS_C_DELEG_FLAG = 1;
+	static final int GSS_C_MUTUAL_FLAG = 2;
+	static final int GSS_C_REPLAY_FLAG = 4;
+	static final int GSS_C_SEQUENCE_FLAG = 8;
+	static final int GSS_C_CONF_FLAG = 16;
+	static final int GSS_C_INTEG_FLAG = 32;
+	static final int GSS_C_INITIATE = 1;
+	static final int GSS_C_MECH_CODE = 2;
+	static final int GSS_C_INDEFINITE = 0xffffffff;
+	static final int GSS_S_CONTINUE_NEEDED = 1;
+
+	static final int SEC_E_TARGET_UNKNOWN = 0x80090303;
+	static final int SEC_E_INTERNAL_ERROR = 0x80090304;
+	static final int SEC_E_NO_CREDENTIALS = 0x8009030E;
+	static final int SEC_E_CONTEXT_EXPIRED = 0x80090317;
+
+	private static final Pointer TAG = new Pointer (0x475353L);
+
+	public String getName () { return "gssapi"; }
+
+	/** @return <tt>true</tt> outside of Windows, if the GSS-API library can be loaded. */
+	public boolean isSupported () {
+		String osname = System.getProperty ("os.name");
+		if (osname!=null && osname.toLowerCase ().startsWith ("windows"))
+			return false;
+		try {
+			return api () != null;
+		} catch (LinkageError e) {
+			Utils.log ("Unable to load the GSS-API library: " + e);
+			return false;
+		}
+	}
+
+	public void bind () {
+		api ();
+	}
+
+	private static GSSAPI api () {
+		return Holder.INSTANCE;
+	}
+
+	protected KerberosPackage probePackage (String packageName) {
+		if (! KerberosPackage.NAME.equalsIgnoreCase (packageName) || ! isSupported ())
+			return KerberosPackage.unavailable (SEC_E_SECPKG_NOT_FOUND);
+		return new KerberosPackage (SEC_E_OK, 0, (short) 1, (short) 16, MAX_TOKEN_SIZE, "Kerberos 5 through GSS-API");
+	}
+
+	/** @return a value that identifies the credential cache in use, since there are no logon sessions. */
+	public long getLogonSessionId () {
+		String cache = System.getenv ("KRB5CCNAME");
+		return cache == null ? 1 : cache.hashCode ();
+	}
+
+	public String getUserPrincipalName () throws JSchException {
+		IntByReference minor = new IntByReference ();
+		PointerByReference cred = new PointerByReference ();
+		int major = api ().gss_acquire_cred (minor, null, 0, Holder.KRB5_MECHS, GSS_C_INITIATE, cred, null, null);
+		Utils.assertOk (toResult (major, minor.getValue (), "gss_acquire_cred"), "gss_acquire_cred");
+		try {
+			PointerByReference name = new PointerByReference ();
+			major = api ().gss_inquire_cred (minor, cred.getValue (), name, null, null, null);
+			Utils.assertOk (toResult (major, minor.getValue (), "gss_inquire_cred"), "gss_inquire_cred");
+			try { return displayName (name.getValue ()); }
+			finally { api ().gss_release_name (minor, name); }
+		}
+		finally {
+			api ().gss_release_cred (minor, cred);
+		}
+	}
+
+	public int acquireCredentialsHandle (String packageName, CredHandle credential, TimeStamp expiry) {
+		if (! KerberosPackage.NAME.equalsIgnoreCase (packageName))
+			return SEC_E_SECPKG_NOT_FOUND;
+		IntByReference minor = new IntByReference (), lifetime = new IntByReference ();
+		PointerByReference cred = new PointerByReference ();
+		int major = api ().gss_acquire_cred (minor, null, 0, Holder.KRB5_MECHS, GSS_C_INITIATE, cred, null, lifetime);
+		int result = toResult (major, minor.getValue (), "gss_acquire_cred");
+		if (result == SEC_E_OK) {
+			setHandle (credential, cred.getValue ());
+			toTimeStamp (lifetime.getValue (), expiry);
+		}
+		return result;
+	}
+
+	public int freeCredentialsHandle (CredHandle credential) {
+		Pointer cred = getHandle (credential);
+		if (cred == null)
+			return SEC_E_INVALID_HANDLE;
+		IntByReference minor = new IntByReference ();
+		return toResult (api ().gss_release_cred (minor, new PointerByReference (cred)), minor.getValue (), "gss_release_cred");
+	}
+
+	public int initializeSecurityContext (CredHandle credential, CtxtHandle context, String targetName,
+	                                      int contextReq, SecBufferDesc input, CtxtHandle newContext,
+	                                      SecBufferDesc output, int attributes[], TimeStamp expiry) {
+		IntByReference minor = new IntByReference (), flags = new IntByReference (), lifetime = new IntByReference ();
+		PointerByReference ctx = new PointerByReference (getHandle (context));
+		gss_buffer_desc in = null, out = new gss_buffer_desc ();
+		if (input != null) {
+			SecBuffer buffer = input.getBuffer (0);
+			if (buffer.cbBuffer.intValue () > 0)
+				in = new gss_buffer_desc (buffer.pvBuffer, buffer.cbBuffer.intValue ());
+		}
+
+		Pointer target = importName (targetName);
+		if (target == null)
+			return SEC_E_TARGET_UNKNOWN;
+		int major;
+		try {
+			major = api ().gss_init_sec_context (
+				minor, getHandle (credential), ctx, target, Holder.KRB5_MECH,
+				toGSSFlags (contextReq), 0, null, in, null, out, flags, lifetime
+			);
+		}
+		finally {
+			api ().gss_release_name (new IntByReference (), new PointerByReference (target));
+		}
+
+		int result = toResult (major, minor.getValue (), "gss_init_sec_context");
+		try {
+			if (result < 0)
+				return result;
+			if (ctx.getValue () != null)
+				setHandle (newContext, ctx.getValue ());
+			if (! copyToken (out, output.getBuffer (0)))
+				return SEC_E_BUFFER_TOO_SMALL;
+			output.write ();
+			attributes[0] = toSSPIFlags (flags.getValue ());
+			toTimeStamp (lifetime.getValue (), expiry);
+			return result;
+		}
+		finally {
+			api ().gss_release_buffer (new IntByReference (), out);
+		}
+	}
+
+	/** GSS-API tokens need no completion. */
+	public int completeAuthToken (CtxtHandle context, SecBufferDesc token) {
+		return SEC_E_OK;
+	}
+
+	public int makeSignature (CtxtHandle context, int qop, SecBufferDesc message, int sequence) {
+		Pointer ctx = getHandle (context);
+		if (ctx == null)
+			return SEC_E_INVALID_HANDLE;
+		SecBuffer data = message.getBuffer (0), token = message.getBuffer (1);
+		IntByReference minor = new IntByReference ();
+		gss_buffer_desc mic = new gss_buffer_desc ();
+		int major = api ().gss_get_mic (minor, ctx, qop, new gss_buffer_desc (data.pvBuffer, data.cbBuffer.intValue ()), mic);
+		int result = toResult (major, minor.getValue (), "gss_get_mic");
+		try {
+			if (result != SEC_E_OK)
+				return result;
+			if (! copyToken (mic, token))
+				return SEC_E_BUFFER_TOO_SMALL;
+			message.write ();
+			return SEC_E_OK;
+		}
+		finally {
+			api ().gss_release_buffer (new IntByReference (), mic);
+		}
+	}
+
+	public int verifySignature (CtxtHandle context, SecBufferDesc message, int sequence, int qop[]) {
+		Pointer ctx = getHandle (context);
+		if (ctx == null)
+			return SEC_E_INVALID_HANDLE;
+		SecBuffer data = message.getBuffer (0), token = message.getBuffer (1);
+		IntByReference minor = new IntByReference (), state = new IntByReference ();
+		int major = api ().gss_verify_mic (minor, ctx,
+			new gss_buffer_desc (data.pvBuffer, data.cbBuffer.intValue ()),
+			new gss_buffer_desc (token.pvBuffer, token.cbBuffer.intValue ()), state);
+		qop[0] = state.getValue ();
+		int result = toResult (major, minor.getValue (), "gss_verify_mic");
+		if (result == SEC_E_OK && (major & 0xfffe) != 0)
+			return SEC_E_OUT_OF_SEQUENCE;
+		return result;
+	}
+
+	public int deleteSecurityContext (CtxtHandle context) {
+		Pointer ctx = getHandle (context);
+		if (ctx == null)
+			return SEC_E_INVALID_HANDLE;
+		IntByReference minor = new IntByReference ();
+		return toResult (api ().gss_delete_sec_context (minor, new PointerByReference (ctx), null), minor.getValue (), "gss_delete_sec_context");
+	}
+
+	public ContextAttributes queryContextAttributes (CtxtHandle context, int flags, TimeStamp expiry) {
+		String clientName = null, serverName = null;
+		IntByReference minor = new IntByReference ();
+		PointerByReference source = new PointerByReference (), target = new PointerByReference ();
+		int major = api ().gss_inquire_context (minor, getHandle (context), source, target, null, null, null, null, null);
+		if (toResult (major, minor.getValue (), "gss_inquire_context") == SEC_E_OK) {
+			try {
+				clientName = displayName (source.getValue ());
+				serverName = displayName (target.getValue ());
+			}
+			finally {
+				api ().gss_release_name (minor, source);
+				api ().gss_release_name (minor, target);
+			}
+		}
+		return new ContextAttributes (
+			flags, Utils.toMillis (expiry), MAX_TOKEN_SIZE, MAX_SIGNATURE, 1, MAX_SIGNATURE,
+			clientName, clientName, serverName
+		);
+	}
+
+	/** Imports an SSPI style service principal name.
+	 *  @return the GSS-API name, which the caller must release, or <tt>null</tt> if it is invalid.
+	 */
+	private Pointer importName (String name) {
+		Memory nameType = Holder.NT_HOSTBASED_SERVICE;
+		if (name.indexOf ('@') >= 0)
+			nameType = Holder.NT_KRB5_PRINCIPAL;
+		else
+			name = name.replaceFirst ("/", "@");
+
+		byte bytes[];
+		try { bytes = name.getBytes ("UTF-8"); }
+		catch (java.io.UnsupportedEncodingException e) { throw new IllegalStateException (e); }
+		Memory memory = new Memory (bytes.length);
+		memory.write (0, bytes, 0, bytes.length);
+
+		IntByReference minor = new IntByReference ();
+		PointerByReference imported = new PointerByReference ();
+		int major = api ().gss_import_name (minor, new gss_buffer_desc (memory, bytes.length), nameType, imported);
+		if (toResult (major, minor.getValue (), "gss_import_name(" + name + ")") != SEC_E_OK)
+			return null;
+		return imported.getValue ();
+	}
+
+	private String displayName (Pointer name) {
+		if (name == null)
+			return null;
+		IntByReference minor = new IntByReference ();
+		gss_buffer_desc buffer = new gss_buffer_desc ();
+		if (api ().gss_display_name (minor, name, buffer, null) != 0)
+			return null;
+		try { return toString (buffer); }
+		finally { api ().gss_release_buffer (minor, buffer); }
+	}
+
+	/** Copies a token from a GSS-API buffer into an SSPI buffer.
+	 *  @return <tt>false</tt> if it does not fit.
+	 */
+	private static boolean copyToken (gss_buffer_desc from, SecBuffer to) {
+		int length = from.length == null ? 0 : from.length.intValue ();
+		if (length > to.cbBuffer.intValue ())
+			return false;
+		if (length > 0)
+			to.pvBuffer.write (0, from.value.getByteArray (0, length), 0, length);
+		to.cbBuffer = new NativeLong (length);
+		return true;
+	}
+
+	private static String toString (gss_buffer_desc buffer) {
+		int length = buffer.length == null ? 0 : buffer.length.intValue ();
+		if (length <= 0 || buffer.value == null)
+			return null;
+		try { return new String (buffer.value.getByteArray (0, length), "UTF-8"); }
+		catch (java.io.UnsupportedEncodingException e) { throw new IllegalStateException (e); }
+	}
+
+	/** Translates a GSS-API status into the nearest SSPI result code, logging any failure. */
+	private int toResult (int major, int minor, String function) {
+		int routine = (major >>> 16) & 0xff, calling = major >>> 24, result;
+		if (routine == 0 && calling == 0)
+			return (major & GSS_S_CONTINUE_NEEDED) != 0 ? SEC_I_CONTINUE_NEEDED : SEC_E_OK;
+		switch (calling != 0 ? 0 : routine) {
+		case 1: result = SEC_E_SECPKG_NOT_FOUND; break;			// GSS_S_BAD_MECH
+		case 2: case 3: result = SEC_E_TARGET_UNKNOWN; break;	// GSS_S_BAD_NAME, GSS_S_BAD_NAMETYPE
+		case 6: result = SEC_E_MESSAGE_ALTERED; break;			// GSS_S_BAD_SIG
+		case 7: case 10: result = SEC_E_NO_CREDENTIALS; break;	// GSS_S_NO_CRED, GSS_S_DEFECTIVE_CREDENTIAL
+		case 8: result = SEC_E_INVALID_HANDLE; break;			// GSS_S_NO_CONTEXT
+		case 9: result = SEC_E_INVALID_TOKEN; break;			// GSS_S_DEFECTIVE_TOKEN
+		case 11: case 12: result = SEC_E_CONTEXT_EXPIRED; break;	// GSS_S_CREDENTIALS_EXPIRED, GSS_S_CONTEXT_EXPIRED
+		case 16: result = SEC_E_UNSUPPORTED_FUNCTION; break;	// GSS_S_UNAVAILABLE
+		default: result = SEC_E_INTERNAL_ERROR; break;
+		}
+		if (Utils.isLoggable (Logger.ERROR))
+			Utils.log (Logger.ERROR, function + " failed (major 0x" + Integer.toHexString (major) + "): " + describe (minor));
+		return result;
+	}
+
+	/** @return the Kerberos message for a minor status code. */
+	private String describe (int minor) {
+		StringBuilder sb = new StringBuilder ();
+		IntByReference context = new IntByReference (), ignored = new IntByReference ();
+		do {
+			gss_buffer_desc message = new gss_buffer_desc ();
+			if (api ().gss_display_status (ignored, minor, GSS_C_MECH_CODE, Holder.KRB5_MECH, context, message) != 0)
+				break;
+			try {
+				if (sb.length () > 0)
+					sb.append ("; ");
+				sb.append (toString (message));
+			}
+			finally { api ().gss_release_buffer (ignored, message); }
+		} while (context.getValue () != 0);
+		return sb.length () > 0 ? sb.toString () : "minor 0x" + Integer.toHexString (minor);
+	}
+
+	private static int toGSSFlags (int contextReq) {
+		int flags = contextReq & (GSS_C_DELEG_FLAG | GSS_C_MUTUAL_FLAG | GSS_C_REPLAY_FLAG | GSS_C_SEQUENCE_FLAG | GSS_C_CONF_FLAG);
+		if ((contextReq & ISC_REQ_INTEGRITY) != 0)
+			flags |= GSS_C_INTEG_FLAG;
+		return flags;
+	}
+
+	private static int toSSPIFlags (int flags) {
+		int attributes = flags & (GSS_C_DELEG_FLAG | GSS_C_MUTUAL_FLAG | GSS_C_REPLAY_FLAG | GSS_C_SEQUENCE_FLAG | GSS_C_CONF_FLAG);
+		if ((flags & GSS_C_INTEG_FLAG) != 0)
+			attributes |= ISC_REQ_INTEGRITY;
+		return attributes;
+	}
+
+	/** Stores a lifetime (in seconds from now) as an SSPI expiry. */
+	private static void toTimeStamp (int lifetime, TimeStamp expiry) {
+		if (lifetime == GSS_C_INDEFINITE)
+			Utils.toTimeStamp (Long.MAX_VALUE, expiry);
+		else
+			Utils.toTimeStamp (System.currentTimeMillis () + (lifetime & 0xffffffffL) * 1000L, expiry);
+	}
+
+	private static void setHandle (SecHandle handle, Pointer value) {
+		handle.dwLower = value;
+		handle.dwUpper = TAG;
+	}
+
+	private static Pointer getHandle (SecHandle handle) {
+		if (handle == null || ! TAG.equals (handle.dwUpper))
+			return null;
+		return handle.dwLower;
+	}
+
+	/** Allocates a <tt>gss_OID_desc</tt> that is never freed. */
+	private static Memory oid (int... encoded) {
+		Memory elements = new Memory (encoded.length);
+		for (int i = 0; i < encoded.length; i++)
+			elements.setByte (i, (byte) encoded[i]);
+		Memory oid = new Memory (Pointer.SIZE * 2);
+		oid.setInt (0, encoded.length);
+		oid.setPointer (Pointer.SIZE, elements);
+		Holder.keep (elements);
+		return oid;
+	}
+
+	private static class Holder {
+		private static final java.util.List<Memory> retained = new java.util.ArrayList<Memory> ();
+
+		static final GSSAPI INSTANCE = load ();
+
+		/** 1.2.840.113554.1.2.2 */
+		static final Memory KRB5_MECH = oid (0x2a, 0x86, 0x48, 0x86, 0xf7, 0x12, 0x01, 0x02, 0x02);
+		/** 1.2.840.113554.1.2.2.1 */
+		static final Memory NT_KRB5_PRINCIPAL = oid (0x2a, 0x86, 0x48, 0x86, 0xf7, 0x12, 0x01, 0x02, 0x02, 0x01);
+		/** 1.2.840.113554.1.2.1.4 */
+		static final Memory NT_HOSTBASED_SERVICE = oid (0x2a, 0x86, 0x48, 0x86, 0xf7, 0x12, 0x01, 0x02, 0x01, 0x04);
+		/** A <tt>gss_OID_set_desc</tt> holding only the Kerberos mechanism. */
+		static final Memory KRB5_MECHS = new Memory (Pointer.SIZE * 2);
+
+		static {
+			KRB5_MECHS.setNativeLong (0, new NativeLong (1));
+			KRB5_MECHS.setPointer (Pointer.SIZE, KRB5_MECH);
+		}
+
+		/** Loads the configured library, or else the runtime library (since the unversioned
+		 *  <tt>libgssapi_krb5.so</tt> is often only installed with the development package). */
+		private static GSSAPI load () {
+			String name = System.getProperty (LIBRARY_PROPERTY);
+			if (name != null)
+				return (GSSAPI) Native.loadLibrary (name, GSSAPI.class);
+			try {
+				return (GSSAPI) Native.loadLibrary ("gssapi_krb5", GSSAPI.class);
+			} catch (UnsatisfiedLinkError e) {
+				return (GSSAPI) Native.loadLibrary ("libgssapi_krb5.so.2", GSSAPI.class);
+			}
+		}
+
+		static synchronized void keep (Memory memory) {
+			retained.add (memory);
+		}
+	}
+
+	/**GSS-API buffer (see RFC 2744 for details).
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class gss_buffer_desc extends Structure {
+		public NativeLong length;
+		public Pointer value;
+
+		public gss_buffer_desc () {
+			this.length = new NativeLong (0);
+		}
+
+		public gss_buffer_desc (Pointer value, int length) {
+			this.length = new NativeLong (length);
+			this.value = value;
+		}
+	}
+
+	/**The GSS-API functions we use (see RFC 2744 for details).
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public interface GSSAPI extends Library {
+		public int gss_acquire_cred (IntByReference minor, Pointer desiredName, int timeReq, Pointer desiredMechs,
+		                             int credUsage, PointerByReference outputCred, Pointer actualMechs, IntByReference timeRec);
+
+		public int gss_release_cred (IntByReference minor, PointerByReference cred);
+
+		public int gss_inquire_cred (IntByReference minor, Pointer cred, PointerByReference name, IntByReference lifetime,
+		                             IntByReference credUsage, Pointer mechanisms);
+
+		public int gss_import_name (IntByReference minor, gss_buffer_desc inputName, Pointer nameType, PointerByReference outputName);
+
+		public int gss_display_name (IntByReference minor, Pointer name, gss_buffer_desc outputName, Pointer outputNameType);
+
+		public int gss_release_name (IntByReference minor, PointerByReference name);
+
+		public int gss_init_sec_context (IntByReference minor, Pointer cred, PointerByReference context, Pointer targetName,
+		                                 Pointer mechType, int reqFlags, int timeReq, Pointer bindings, gss_buffer_desc inputToken,
+		                                 Pointer actualMechType, gss_buffer_desc outputToken, IntByReference retFlags, IntByReference timeRec);
+
+		public int gss_get_mic (IntByReference minor, Pointer context, int qop, gss_buffer_desc message, gss_buffer_desc token);
+
+		public int gss_verify_mic (IntByReference minor, Pointer context, gss_buffer_desc message, gss_buffer_desc token, IntByReference qop);
+
+		public int gss_delete_sec_context (IntByReference minor, PointerByReference context, Pointer outputToken);
+
+		public int gss_inquire_context (IntByReference minor, Pointer context, PointerByReference sourceName, PointerByReference targetName,
+		                                IntByReference lifetime, Pointer mechType, IntByReference flags, IntByReference locallyInitiated,
+		                                IntByReference open);
+
+		public int gss_release_buffer (IntByReference minor, gss_buffer_desc buffer);
+
+		public int gss_display_status (IntByReference minor, int status, int statusType, Pointer mechType,
+		                               IntByReference messageContext, gss_buffer_desc statusString);
+	}
+}
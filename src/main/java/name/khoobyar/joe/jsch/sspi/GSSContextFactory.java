@@ -0,0 +1,115 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jcraft.jsch.Logger;
+
+/**Hands out {@link GSSContextSSPI} instances, recycling the ones that are disposed.
+ *
+ * <p>JSch constructs a new context by reflection for every authentication attempt, and
+ * each one would otherwise allocate its native structures and register with the
+ * {@link HandleCleaner} again.  A context from {@link #newContext()} is instead reset by
+ * {@link GSSContextSSPI#dispose()} and kept in a bounded pool of idle contexts, with its
+ * native structures still attached; contexts beyond the pool's capacity are disposed.
+ * Idle contexts hold no handles or credentials.  A pooled context is only handed out
+ * again if it uses the current default backend and logger.
+ *
+ * <p>The default factory pools the number of contexts given by the
+ * <tt>name.khoobyar.joe.jsch.sspi.contexts</tt> system property (8 by default).
+ * JSch reaches it through {@link PooledGSSContext}.
+ *
+ * @author Joe Khoobyar
+ */
+public class GSSContextFactory {
+
+	public static final String CAPACITY_PROPERTY = "name.khoobyar.joe.jsch.sspi.contexts";
+	public static final int DEFAULT_CAPACITY = 8;
+
+	private final BlockingQueue<GSSContextSSPI> idle;
+	private final AtomicLong created = new AtomicLong ();
+	private final AtomicLong reused = new AtomicLong ();
+	private final AtomicLong discarded = new AtomicLong ();
+
+	public GSSContextFactory (int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException ("capacity must be positive");
+		this.idle = new ArrayBlockingQueue<GSSContextSSPI> (capacity);
+	}
+
+	/** @return the factory used by {@link PooledGSSContext} and the GSS key exchanges. */
+	public static GSSContextFactory getDefault () {
+		return Holder.INSTANCE;
+	}
+
+	/** @return a context in the {@link GSSContextSSPI.Stage#NEW} stage, which returns here when it is disposed. */
+	public GSSContextSSPI newContext () {
+		SSPIBackend backend = SSPIBackend.getDefault ();
+		Logger logger = Utils.getLogger ();
+		for (GSSContextSSPI context; (context = idle.poll ()) != null; ) {
+			if (context.getBackend () == backend && context.getLogger () == logger) {
+				reused.incrementAndGet ();
+				return context;
+			}
+			discard (context);
+		}
+		GSSContextSSPI context = new GSSContextSSPI (backend, logger);
+		context.factory = this;
+		created.incrementAndGet ();
+		return context;
+	}
+
+	/** Resets a disposed context and adds it to the idle contexts.
+	 *  @return <tt>false</tt> if the context must be disposed instead.
+	 */
+	boolean recycle (GSSContextSSPI context) {
+		if (! context.reset ())
+			return false;
+		if (idle.offer (context))
+			return true;
+		context.factory = null;
+		discarded.incrementAndGet ();
+		return false;
+	}
+
+	/** Disposes every idle context. */
+	public void clear () {
+		for (GSSContextSSPI context; (context = idle.poll ()) != null; )
+			discard (context);
+	}
+
+	/** Disposes a context for good, without returning it to the idle contexts. */
+	void discard (GSSContextSSPI context) {
+		context.factory = null;
+		context.dispose ();
+		discarded.incrementAndGet ();
+	}
+
+	/** @return the number of idle contexts. */
+	public int getIdle () { return idle.size (); }
+
+	public int getCapacity () { return idle.size () + idle.remainingCapacity (); }
+
+	/** @return the number of contexts that were constructed. */
+	public long getCreated () { return created.get (); }
+
+	/** @return the number of contexts that were handed out again. */
+	public long getReused () { return reused.get (); }
+
+	/** @return the number of contexts that were disposed instead of being pooled. */
+	public long getDiscarded () { return discarded.get (); }
+
+	public String toString () {
+		return "GSSContextFactory[idle=" + getIdle () + ", created=" + created.get ()
+			+ ", reused=" + reused.get () + ", discarded=" + discarded.get () + "]";
+	}
+
+	private static class Holder {
+		static final GSSContextFactory INSTANCE = new GSSContextFactory (
+			Math.max (1, Integer.getInteger (CAPACITY_PROPERTY, DEFAULT_CAPACITY).intValue ()));
+	}
+}
@@ -3,337 +3,744 @@
  */
 package name.khoobyar.joe.jsch.sspi;
 
-import static com.sun.jna.platform.win32.Secur32.*;
-import static com.sun.jna.platform.win32.Sspi.ISC_REQ_ALLOCATE_MEMORY;
 import static com.sun.jna.platform.win32.Sspi.ISC_REQ_DELEGATE;
 import static com.sun.jna.platform.win32.Sspi.ISC_REQ_INTEGRITY;
 import static com.sun.jna.platform.win32.Sspi.ISC_REQ_MUTUAL_AUTH;
-import static com.sun.jna.platform.win32.Sspi.MAX_TOKEN_SIZE;
 import static com.sun.jna.platform.win32.Sspi.SECBUFFER_DATA;
 import static com.sun.jna.platform.win32.Sspi.SECBUFFER_TOKEN;
-import static com.sun.jna.platform.win32.Sspi.SECPKG_CRED_OUTBOUND;
-import static com.sun.jna.platform.win32.Sspi.SECURITY_NATIVE_DREP;
-import static com.sun.jna.platform.win32.W32Errors.SEC_E_SECPKG_NOT_FOUND;
 import static com.sun.jna.platform.win32.W32Errors.SEC_I_COMPLETE_NEEDED;
 import static com.sun.jna.platform.win32.W32Errors.SEC_I_COMPLETE_AND_CONTINUE;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
-import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Logger;
-import com.sun.jna.platform.win32.Kernel32;
-import com.sun.jna.platform.win32.Secur32;
-import com.sun.jna.platform.win32.Secur32Util;
-import com.sun.jna.platform.win32.Sspi;
 import com.sun.jna.platform.win32.Sspi.SecBuffer;
-import com.sun.jna.platform.win32.Secur32Util.SecurityPackage;
-import com.sun.jna.platform.win32.Sspi.CredHandle;
 import com.sun.jna.platform.win32.Sspi.CtxtHandle;
 import com.sun.jna.platform.win32.Sspi.TimeStamp;
-import com.sun.jna.Memory;
-import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
-import com.sun.jna.ptr.IntByReference;
-import com.sun.jna.ptr.NativeLongByReference;
-import com.sun.jna.ptr.PointerByReference;
-import name.khoobyar.joe.jsch.sspi.Utils.Secur32.SecBufferDesc;
+import name.khoobyar.joe.jsch.sspi.Utils.SecBufferDesc;
 
+/**JSch GSS context that authenticates through SSPI (or another {@link SSPIBackend}).
+ *
+ * <p>The handshake moves through the stages of {@link Stage}.  Its state is held in an
+ * immutable {@link State} that is only ever replaced by compare-and-set, so a context
+ * may be shared between threads without any locking.  A thread that calls into the
+ * security package first claims the state, and a second thread that tries to use the
+ * context at the same time gets an <tt>IllegalStateException</tt> instead of racing it
+ * for the native handles.  {@link #dispose()} never blocks: if another thread holds the
+ * claim, that thread releases the handles once its call returns.
+ *
+ * <p>A context that is garbage collected without being disposed, e.g. because JSch gave
+ * up on a connection attempt, has its handles released by the {@link HandleCleaner}.
+ *
+ * <p>{@link #create(String, String, Deadlines)} and {@link #init(byte[], int, int, Deadlines)}
+ * bound how long each blocking phase may take.  When a deadline passes, the context is
+ * disposed and the caller gets an {@link SSPITimeoutException} at once; the abandoned
+ * call releases its context handle and credentials on its worker thread once it returns.
+ *
+ * <p>The native structures that every call needs are allocated once per context, and
+ * {@link #reset()} lets a context authenticate again.  Contexts handed out by a
+ * {@link GSSContextFactory} are reset and returned to its pool by {@link #dispose()}, so
+ * they must not be used once they are disposed.
+ *
+ * @author Joe Khoobyar
+ */
 public class GSSContextSSPI
 	implements com.jcraft.jsch.GSSContext
 {
-	//private SecPkgContext_Sizes sspiSizes;
-	private SSPIState sspiState;
+	/**A stage of the handshake.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public enum Stage {
+		/** No credentials have been acquired yet, or the last handshake failed. */
+		NEW,
+		/** Credentials are acquired, and the first leg has not been initialized yet. */
+		CREDENTIALS,
+		/** The security package expects another token from the server. */
+		CONTINUE,
+		/** The context is established, and may sign messages. */
+		ESTABLISHED,
+		/** The context was disposed, and may not be used again. */
+		DISPOSED
+	}
 
-	private CtxtHandle contextHandle;
-	//private TimeStamp contextStamp;
+	private final AtomicReference<State> state = new AtomicReference<State> (State.NEW);
+	private final SSPIBackend backend;
+	private final Logger logger;
+	private final HandleCleaner.Cleanable cleanable;
 
-	private CredHandle credHandle;
-	private TimeStamp credStamp;
-	private String credName;
-	private String credKrbName;
+	/** The pool that {@link #dispose()} returns this context to, or <tt>null</tt>. */
+	volatile GSSContextFactory factory;
 
-	private String serverName;
-	private String serverKrbName;
-	
-	static {
-		Native.setProtected (true);
-	}
+	// Native structures reused by every call, which only the thread holding the claim may touch.
+	private final CtxtHandle contextHandle = new CtxtHandle ();
+	private final TimeStamp contextStamp = new TimeStamp ();
+	private final SecBufferDesc inputTokens = new SecBufferDesc (SECBUFFER_TOKEN, null, 0);
+	private final SecBufferDesc outputTokens = new SecBufferDesc (SECBUFFER_TOKEN, null, 0);
+	private final SecBufferDesc signatureBuffers = new SecBufferDesc (2);
+	private final int outputFlags[] = new int[1];
+
+	/** Attributes of the last context established on each thread. */
+	private static final ThreadLocal<ContextAttributes> lastAttributes = new ThreadLocal<ContextAttributes> ();
 
 	public GSSContextSSPI () {
-		for (SecurityPackage pkg : Secur32Util.getSecurityPackages())
-			if (pkg.name.equalsIgnoreCase ("Kerberos"))
-				return;
-	    Utils.assertUnchecked (SEC_E_SECPKG_NOT_FOUND, "GSSContextSSPI<init>");
+		this (SSPIBackend.getDefault ());
+	}
+
+	public GSSContextSSPI (SSPIBackend backend) {
+		this (backend, Utils.getLogger ());
+	}
+
+	/** @param logger  Receives this context's messages, instead of the logger set with {@link Utils#setLogger(Logger)}. */
+	public GSSContextSSPI (SSPIBackend backend, Logger logger) {
+		this.backend = backend;
+		this.logger = logger;
+		KerberosPackage pkg = backend.getKerberosPackage ();
+		if (! pkg.isFound ())
+			Utils.assertUnchecked (logger, pkg.getResult (), "GSSContextSSPI<init>");
+		this.cleanable = HandleCleaner.getDefault ().register (this, "GSS context", new Cleanup (state, backend, logger));
+	}
+
+	/** @return the backend this context authenticates through. */
+	public SSPIBackend getBackend () {
+		return backend;
+	}
+
+	/** @return the logger this context was bound to when it was constructed, or <tt>null</tt>. */
+	public Logger getLogger () {
+		return logger;
+	}
+
+	/** @return the current state of the handshake. */
+	public State getState () {
+		return state.get ();
 	}
 
 	public void create (String user, String host) throws JSchException {
-		CredHandle credHandle = new CredHandle ();
-		TimeStamp credStamp = new TimeStamp ();
-		//SecPkgContext_Names names = null;
-
-		// Canonicalize the host name.
-		try { serverName = InetAddress.getByName (host).getCanonicalHostName (); }
-		catch (UnknownHostException e) { throw new JSchException ("Failed to canonicalize host name: " + host, e); }
-		serverKrbName = "host/" + serverName;
-
-		// Destroy any old handle that's hanging around.
-		if (this.credHandle!=null && ! this.credHandle.isNull ())
-			Secur32.INSTANCE.FreeCredentialsHandle (this.credHandle);
-		this.credHandle = null;
-    	this.credStamp = null;
-    	this.credName = this.credKrbName = null;
-
-		// Get the credentials handle.
-	    Utils.assertOk (
-	    	Secur32.INSTANCE.AcquireCredentialsHandle (
-				null, "Kerberos", new NativeLong (SECPKG_CRED_OUTBOUND),
-				null, null, null, null, credHandle, credStamp
-			),
-			"AcquireCredentialsHandle"
-		);
-	    try {
-	    	
-		    // Get principal name for the credentials.
-	    	char credNameBuffer[] = new char[255];
-	    	IntByReference credNameLength = new IntByReference (credNameBuffer.length);
-	    	if (Secur32.INSTANCE.GetUserNameEx (EXTENDED_NAME_FORMAT.NameUserPrincipal, credNameBuffer, credNameLength)) {
-	    		credName = new String (credNameBuffer, 0, credNameLength.getValue ());
-				int i = credName.indexOf ('\\');
-		        if (i >= 0)
-		        	credName = credName.substring (i + 1);
-		        credKrbName = credName.replace ('@', '/');
-	    	} else {
-			    Utils.assertOk (Kernel32.INSTANCE.GetLastError (), "GetUserNameEx");
-	    	}
-	    	
-	    	/*
-			names = new SecPkgContext_Names ();
-		    Utils.assertOk (
-				API.QueryCredentialsAttributes (credHandle, new NativeLong (SECPKG_ATTR_NAMES), names),
-				"QueryCredentialsAttributes"
-			);
-		    try {
-				credName = names.getUserName ();
-				int i = credName.indexOf ('\\');
-		        if (i >= 0)
-		        	credName = credName.substring (i + 1);
-		        credKrbName = credName.replace ('@', '/');
-		    }
-		    finally {
-				API.FreeContextBuffer (names.sUserName);
-		    }
-		    
-		    // Mark it as successful.
-		    names = null;
-		    */
-	    }
-	    finally {
-	    	// Clean up on error...
-	    	if (credName == null) {
-				Secur32.INSTANCE.FreeCredentialsHandle (credHandle);
-	    		credHandle = null;
-	    		credStamp = null;
-	    	}
-	    }
-	    
-	    // Save the handles.
-	    if (credHandle==null || credHandle.isNull ())
-            throw new JSchException ("Failed to acquire a credentials handle");
-	    this.credHandle = credHandle;
-	    this.credStamp = credStamp;
+		String names[] = resolve (host);
+		acquire (names[0], names[1]);
+	}
+
+	/** Acquires credentials like {@link #create(String, String)}, within the given deadlines.
+	 *  The host name is canonicalized first, so that each phase has its own deadline.
+	 *  @throws SSPITimeoutException if a deadline passes, after which the context is disposed.
+	 */
+	public void create (final String user, final String host, Deadlines deadlines) throws JSchException {
+		if (! deadlines.isBounded ()) {
+			create (user, host);
+			return;
+		}
+		final String names[] = bounded (SSPIMetrics.Phase.CANONICALIZE_HOST, deadlines, new Callable<String[]> () {
+			public String[] call () throws JSchException {
+				return resolve (host);
+			}
+		});
+		bounded (SSPIMetrics.Phase.ACQUIRE_CREDENTIALS, deadlines, new Callable<Object> () {
+			public Object call () throws JSchException {
+				acquire (names[0], names[1]);
+				return null;
+			}
+		});
+	}
+
+	/** Canonicalizes the host name, unless its service principal name is configured.
+	 *  @return the name of the server, and its service principal name.
+	 */
+	private String[] resolve (String host) throws JSchException {
+		SPNResolver resolver = SPNResolver.getDefault ();
+		long start = SSPIMetrics.start ();
+		String serverName = host;
+		String serverKrbName = resolver.findServicePrincipal (host);
+		if (serverKrbName == null) {
+			serverName = resolver.getCanonicalHostName (host);
+			serverKrbName = "host/" + serverName;
+		}
+		SSPIMetrics.record (logger, SSPIMetrics.Phase.CANONICALIZE_HOST, 0, start, 0);
+		return new String[] { serverName, serverKrbName };
+	}
+
+	/** Starts a new handshake with the resolved server, with a shared credentials handle. */
+	private void acquire (String serverName, String serverKrbName) throws JSchException {
+		State claimed = claim ("create", Stage.NEW, Stage.CREDENTIALS, Stage.CONTINUE, Stage.ESTABLISHED);
+
+		// Release any old context and credentials that are hanging around.
+		release (claimed);
+
+		CredentialCache.Credential credential = null;
+		State next = State.NEW;
+		boolean published = false;
+		try {
+			// Get a shared credentials handle, along with its principal name.
+			credential = CredentialCache.acquire (backend, KerberosPackage.NAME);
+			next = new State (Stage.CREDENTIALS, false, credential, serverName, serverKrbName, null, null, 0, 0, 0);
+		}
+		finally {
+			if (! (published = publish (claimed, next)))
+				CredentialCache.release (credential);
+		}
+		if (! published)
+			throw new IllegalStateException ("The GSS context was disposed during create");
+	}
+
+	/** Processes an input token like {@link #init(byte[], int, int)}, within the given deadlines.
+	 *  The attributes of a context established on the worker are handed to the calling thread,
+	 *  for {@link #takeLastAttributes()}.
+	 *  @throws SSPITimeoutException if the deadline passes, after which the context is disposed.
+	 */
+	public byte[] init (final byte[] token, final int s, final int l, Deadlines deadlines) throws JSchException {
+		if (deadlines.get (SSPIMetrics.Phase.INITIALIZE_CONTEXT) <= 0)
+			return init (token, s, l);
+		final ContextAttributes established[] = new ContextAttributes[1];
+		byte output[] = bounded (SSPIMetrics.Phase.INITIALIZE_CONTEXT, deadlines, new Callable<byte[]> () {
+			public byte[] call () throws JSchException {
+				try {
+					return init (token, s, l);
+				} finally {
+					established[0] = takeLastAttributes ();
+				}
+			}
+		});
+		if (established[0] != null)
+			lastAttributes.set (established[0]);
+		return output;
+	}
+
+	/** Runs a phase on the {@link SSPIExecutor}, and disposes the context if it misses its deadline.
+	 *  The abandoned worker may still call into the context, so it is never recycled.
+	 */
+	private <T> T bounded (SSPIMetrics.Phase phase, Deadlines deadlines, Callable<T> task) throws JSchException {
+		try {
+			return SSPIExecutor.getDefault ().call (phase, deadlines.get (phase), task);
+		} catch (SSPITimeoutException e) {
+			GSSContextFactory factory = this.factory;
+			if (factory != null)
+				factory.discard (this);
+			else
+				dispose ();
+			throw e;
+		}
 	}
 
 	/** @return <tt>true</tt> if the the GSS context is established. */
 	public boolean isEstablished() {
-		return contextHandle!=null && ! contextHandle.isNull () && (sspiState==null || sspiState.lastResult==0);
+		State s = state.get ();
+		return s.stage == Stage.ESTABLISHED && s.lastResult == 0;
+	}
+
+	/** @return the attributes of the established context, or <tt>null</tt> if it is not established. */
+	public ContextAttributes getAttributes () {
+		State s = state.get ();
+		return s.stage == Stage.ESTABLISHED && s.lastResult == 0 ? s.attributes : null;
+	}
+
+	/** Returns and forgets the attributes of the last context established on the calling thread.
+	 *  Since JSch creates and authenticates its contexts on the thread that connects the session,
+	 *  this lets the caller of <tt>Session.connect()</tt> find out how long the session's
+	 *  Kerberos ticket is valid for.
+	 *  @return the attributes, or <tt>null</tt> if no context was established since the last call.
+	 */
+	public static ContextAttributes takeLastAttributes () {
+		ContextAttributes attributes = lastAttributes.get ();
+		lastAttributes.remove ();
+		return attributes;
+	}
+
+	/** @return <tt>true</tt> if the context is established and has not expired, so it may still be used. */
+	public boolean isUsable () {
+		ContextAttributes attributes = getAttributes ();
+		return attributes != null && ! attributes.isExpired (System.currentTimeMillis ());
 	}
 
 	public byte[] init (byte[] token, int s, int l) throws JSchException {
-		
-		// Sanity check.
-	    if (credHandle==null || credHandle.isNull ())
-            throw new IllegalStateException ("A credentials handle must be acquired first");
-
-		// Prepare arguments and process any previous state.
-	    int result = 0;
-		TimeStamp ctxStamp = new TimeStamp ();
-		CtxtHandle ctxHandle = new CtxtHandle (), prevHandle = null;
-		NativeLongByReference outputFlags = new NativeLongByReference (new NativeLong (0));
-		SecBufferDesc input = null, buffers = new SecBufferDesc (SECBUFFER_TOKEN, MAX_TOKEN_SIZE);
-		if (sspiState != null && sspiState.handle != null)
-			prevHandle = sspiState.handle;
-		if (token!=null && s>=0 && l>0) {
-			byte data[] = new byte[l];
-			System.arraycopy (token, s, data, 0, l);
-			input = new SecBufferDesc (SECBUFFER_TOKEN, data);
+		TokenBufferPool pool = TokenBufferPool.getDefault ();
+		int size = pool.getBufferSize (), used = size;
+		Pointer input = null, output = pool.borrow (size);
+		if (token==null || s<0 || l<=0)
+			l = 0;
+		try {
+			if (l > 0) {
+				input = pool.borrow (l);
+				input.write (0, token, s, l);
+			}
+			used = init (input, l, output, size);
+			return used > 0 ? output.getByteArray (0, used) : null;
+		}
+		finally {
+			pool.release (input, l);
+			pool.release (output, used);
+		}
+	}
+
+	/** Processes an input token, writing any output token at the position of <tt>output</tt>
+	 *  and advancing it.  Direct buffers are handed to SSPI without copying; heap buffers are
+	 *  copied through pooled native buffers.  <tt>output</tt> should have room for at least
+	 *  {@link KerberosPackage#getMaxToken()} bytes.
+	 *
+	 *  @param token   The input token (from its position to its limit), or <tt>null</tt>.
+	 *  @return the length of the output token.
+	 */
+	public int init (ByteBuffer token, ByteBuffer output) throws JSchException {
+		TokenBufferPool pool = TokenBufferPool.getDefault ();
+		Pointer input = null, buffer = null;
+		int l = token==null ? 0 : token.remaining (), size = output.remaining (), used = 0;
+		try {
+			Pointer in = null, out;
+			if (l > 0) {
+				if (token.isDirect ())
+					in = Utils.getDirectPointer (token);
+				else
+					in = input = Utils.copyToNative (pool, token);
+			}
+			if (output.isDirect ())
+				out = Utils.getDirectPointer (output);
+			else
+				out = buffer = pool.borrow (size);
+			used = init (in, l, out, size);
+			if (buffer != null)
+				Utils.copyFromNative (buffer, used, output);
+			else
+				output.position (output.position () + used);
+			if (token != null)
+				token.position (token.limit ());
+			return used;
+		}
+		finally {
+			pool.release (input, l);
+			pool.release (buffer, size);
+		}
+	}
+
+	/** Processes an input token held in native memory, writing any output token to native memory.
+	 *
+	 *  @param token        The input token, or <tt>null</tt>.
+	 *  @param tokenLength  Length of the input token.
+	 *  @param output       Receives the output token.
+	 *  @param outputLength Size of <tt>output</tt>.
+	 *  @return the length of the output token.
+	 */
+	public int init (Pointer token, int tokenLength, Pointer output, int outputLength) throws JSchException {
+		State claimed;
+		try { claimed = claim ("init", Stage.CREDENTIALS, Stage.CONTINUE); }
+		catch (IllegalStateException e) {
+			if (state.get ().stage == Stage.NEW)
+				throw new IllegalStateException ("A credentials handle must be acquired first");
+			throw e;
+		}
+
+		// Prepare arguments.  Later legs pass the same handle in and out, as SSPI allows.
+		int result = 0;
+		TimeStamp ctxStamp = contextStamp;
+		CtxtHandle ctxHandle = contextHandle, prevHandle = claimed.handle;
+		if (prevHandle == null) {
+			ctxHandle.dwLower = null;
+			ctxHandle.dwUpper = null;
 		}
+		outputFlags[0] = 0;
+		int legs = claimed.legs + 1;
+		SecBufferDesc input = null, buffers = setBuffer (outputTokens, 0, SECBUFFER_TOKEN, output, outputLength);
+		if (token!=null && tokenLength>0)
+			input = setBuffer (inputTokens, 0, SECBUFFER_TOKEN, token, tokenLength);
+		CredentialCache.Credential credential = claimed.credential;
 	
 		// Get a security context and token.
+		State next;
+		long start = SSPIMetrics.start ();
 		try {
-			result = Utils.Secur32.INSTANCE.InitializeSecurityContext (
-				credHandle, prevHandle, serverKrbName,
+			result = backend.initializeSecurityContext (
+				credential.getHandle (), prevHandle, claimed.serverKrbName,
 				// ISC_REQ_ALLOCATE_MEMORY | 
-				new NativeLong (ISC_REQ_DELEGATE | ISC_REQ_MUTUAL_AUTH | ISC_REQ_INTEGRITY),
-				new NativeLong (0), new NativeLong (SECURITY_NATIVE_DREP),
-				input, new NativeLong (0), ctxHandle, buffers, outputFlags, ctxStamp
+				ISC_REQ_DELEGATE | ISC_REQ_MUTUAL_AUTH | ISC_REQ_INTEGRITY,
+				input, ctxHandle, buffers, outputFlags, ctxStamp
 			);
-	    	String message = Utils.logAndDecode ("InitializeSecurityContext", result);
+			SSPIMetrics.record (logger, SSPIMetrics.Phase.INITIALIZE_CONTEXT, legs, start, result);
+			if (prevHandle == null && ! ctxHandle.isNull ())
+				SSPIMetrics.contextCreated ();
 			if (result < 0)
-				throw new JSchException (message);
-		    if (SEC_I_COMPLETE_NEEDED == result || SEC_I_COMPLETE_AND_CONTINUE == result)
-		    	Utils.assertOk (Utils.Secur32.INSTANCE.CompleteAuthToken (ctxHandle, buffers), "CompleteAuthToken");
-			sspiState = new SSPIState (result, ctxHandle, ctxStamp, buffers.getBytes ());
+				throw new JSchException (Utils.decodeResult ("InitializeSecurityContext", result));
+		    if (SEC_I_COMPLETE_NEEDED == result || SEC_I_COMPLETE_AND_CONTINUE == result) {
+		    	start = SSPIMetrics.start ();
+		    	int completed = backend.completeAuthToken (ctxHandle, buffers);
+		    	SSPIMetrics.record (logger, SSPIMetrics.Phase.COMPLETE_AUTH_TOKEN, 0, start, completed);
+		    	Utils.assertOk (logger, completed, "CompleteAuthToken");
+		    }
+			int length = buffers.getBuffer (0).cbBuffer.intValue ();
+
+			// Get information about sizes, names and lifespan related to a finished context.
+			ContextAttributes attributes = null;
+			if (result == 0) {
+				start = SSPIMetrics.start ();
+				attributes = backend.queryContextAttributes (ctxHandle, outputFlags[0], ctxStamp);
+				SSPIMetrics.record (logger, SSPIMetrics.Phase.QUERY_ATTRIBUTES, 0, start, 0);
+				if (Utils.isLoggable (logger, Logger.DEBUG))
+					Utils.log (logger, Logger.DEBUG, attributes.toString ());
+			}
+			next = new State (result == 0 ? Stage.ESTABLISHED : Stage.CONTINUE, false, credential,
+			                  claimed.serverName, claimed.serverKrbName, ctxHandle, attributes, legs, result, length);
 		}
 		
 		// Clean up any dangling handles after encountering errors.
 		catch (Exception e) {
-			if (prevHandle == null)
-				prevHandle = ctxHandle;
-
-			if (prevHandle!=null && ! prevHandle.isNull ())
-				try { Secur32.INSTANCE.DeleteSecurityContext (prevHandle); }
-				finally { sspiState = null; }
-				
-			try { Secur32.INSTANCE.FreeCredentialsHandle (this.credHandle); }
-			finally { this.credHandle = null; this.credStamp = null; this.credName = null; }
+			Utils.dumpTrace (logger, Logger.ERROR);
+			try {
+				if (prevHandle == null)
+					prevHandle = ctxHandle;
+				if (! prevHandle.isNull ())
+					deleteContext (prevHandle);
+			}
+			finally {
+				// Stop sharing the credentials, in case they are the reason for the failure.
+				CredentialCache.invalidate (credential);
+				CredentialCache.release (credential);
+				publish (claimed, State.NEW);
+			}
 
 			if (e instanceof JSchException)
 				throw (JSchException) e;
 			throw (RuntimeException) e;
 		}
 		
-		// Free any buffers that were allocated by the SSPI provider.
-		finally {
-			/*
-			SecBuffer buffer = buffers.at (0);
-			if (buffer.buffer != null)
-				Utils.assertOk (API.FreeContextBuffer (buffer.buffer), "FreeContextBuffer");
-			*/
+		if (! publish (claimed, next)) {
+			release (next);
+			throw new IllegalStateException ("The GSS context was disposed during init");
 		}
-		
-		// Finish up the token if it is done.
-		if (sspiState.lastResult == 0) {
-			
-			// Destroy any old handle that's hanging around.
-			if (this.contextHandle!=null && ! this.contextHandle.isNull ())
-				try { Secur32.INSTANCE.DeleteSecurityContext (this.contextHandle); }
-				finally { this.contextHandle = null; }
-			/*
-			// Get information about sizes and lengths related to this transport.
-			sspiSizes = new SecPkgContext_Sizes ();
-			Utils.assertOk (
-				API.QueryContextAttributes (sspiState.handle, new NativeLong (SECPKG_ATTR_SIZES), sspiSizes),
-				"QueryContextAttributes(SECPKG_ATTR_SIZES)"
-			);
+		if (next.stage == Stage.ESTABLISHED)
+			lastAttributes.set (next.attributes);
+		return next.length;
+	}
 
-			// Get the names of entities related to this connection.
-			SecPkgContext_Names names = new SecPkgContext_Names ();
-			try {
-				Utils.assertOk (
-					API.QueryContextAttributes (sspiState.handle, new NativeLong (SECPKG_ATTR_NAMES), names),
-					"QueryContextAttributes(SECPKG_ATTR_NAMES)"
-				);
-			}
-			finally {
-				Utils.assertOk (API.FreeContextBuffer (names.sUserName), "FreeContextBuffer");
-			}
-			SecPkgContext_NativeNames nnames = new SecPkgContext_NativeNames ();
-			try {
-				Utils.assertOk (
-					API.QueryContextAttributes (sspiState.handle, new NativeLong (SECPKG_ATTR_NATIVE_NAMES), nnames),
-					"QueryContextAttributes(SECPKG_ATTR_NATIVE_NAMES)"
-				);
-			}
-			finally {
-				Utils.assertOk (API.FreeContextBuffer (nnames.sClientName), "FreeContextBuffer");
-				Utils.assertOk (API.FreeContextBuffer (nnames.sServerName), "FreeContextBuffer");
-			}
-			*/
-			
-			this.contextHandle = sspiState.handle;
+	public byte[] getMIC(byte[] message, int s, int l) {
+		TokenBufferPool pool = TokenBufferPool.getDefault ();
+		int maxSignature = getMaxSignature ();
+		Pointer input = pool.borrow (l), signature = pool.borrow (maxSignature);
+		try {
+			input.write (0, message, s, l);
+			int length = getMIC (input, l, signature, maxSignature);
+			return signature.getByteArray (0, length);
 		}
-		
-		else if (sspiState.lastResult < 0) {
-			Utils.logAndDecode (Logger.ERROR, "SSPI - Last result", sspiState.lastResult);
-            throw new JSchException ("SSPI error " + sspiState.lastResult);
+		finally {
+			pool.release (input, l);
+			pool.release (signature, maxSignature);
 		}
+	}
 
-		return sspiState.data;
+	/** Signs a message, writing the MIC at the position of <tt>mic</tt> and advancing it.
+	 *  Direct buffers are handed to SSPI without copying; heap buffers are copied through
+	 *  pooled native buffers.  <tt>mic</tt> should have room for at least
+	 *  {@link ContextAttributes#getMaxSignature()} bytes.
+	 *
+	 *  @param message The message (from its position to its limit).
+	 *  @return the length of the MIC.
+	 */
+	public int getMIC (ByteBuffer message, ByteBuffer mic) {
+		TokenBufferPool pool = TokenBufferPool.getDefault ();
+		Pointer input = null, buffer = null;
+		int l = message.remaining (), used = 0;
+		try {
+			Pointer in, out;
+			if (message.isDirect ())
+				in = Utils.getDirectPointer (message);
+			else
+				in = input = Utils.copyToNative (pool, message);
+			if (mic.isDirect ())
+				out = Utils.getDirectPointer (mic);
+			else
+				out = buffer = pool.borrow (mic.remaining ());
+			used = getMIC (in, l, out, mic.remaining ());
+			if (buffer != null)
+				Utils.copyFromNative (buffer, used, mic);
+			else
+				mic.position (mic.position () + used);
+			message.position (message.limit ());
+			return used;
+		}
+		finally {
+			pool.release (input, l);
+			pool.release (buffer, used);
+		}
 	}
 
-	public byte[] getMIC(byte[] message, int s, int l) {
-		byte input[] = new byte[l];
-		System.arraycopy (message, s, input, 0, l);
-		
-		SecBuffer.ByReference buffer = new SecBuffer.ByReference (SECBUFFER_DATA, input);
-		SecBufferDesc buffers = new SecBufferDesc ((SecBuffer.ByReference[]) buffer.toArray(2));
-		
-		buffer = buffers.getBuffer (1);
-		buffer.BufferType = new NativeLong (SECBUFFER_TOKEN);
-		buffer.cbBuffer = new NativeLong (MAX_TOKEN_SIZE);
-		buffer.pvBuffer = new Memory (MAX_TOKEN_SIZE);
-		
-		Utils.assertUnchecked (sspiState.lastResult =
-			Utils.Secur32.INSTANCE.MakeSignature (contextHandle, new NativeLong (0), buffers, new NativeLong (0)),
-			"MakeSignature"
-		);
-	
+	/** Signs a message held in native memory, writing the MIC to native memory.
+	 *
+	 *  @return the length of the MIC.
+	 */
+	public int getMIC (Pointer message, int length, Pointer mic, int micLength) {
+		State claimed = claim ("getMIC", Stage.ESTABLISHED);
+
+		SecBufferDesc buffers = setBuffer (signatureBuffers, 0, SECBUFFER_DATA, message, length);
+		setBuffer (buffers, 1, SECBUFFER_TOKEN, mic, micLength);
+
+		State next = claimed.released ();
+		long start = SSPIMetrics.start ();
+		try {
+			int result = backend.makeSignature (claimed.handle, 0, buffers, 0);
+			SSPIMetrics.record (logger, SSPIMetrics.Phase.MAKE_SIGNATURE, 0, start, result);
+			if (result != 0)
+				next = next.withResult (result);
+			Utils.assertUnchecked (logger, result, "MakeSignature");
+		}
+		finally {
+			if (! publish (claimed, next))
+				release (next);
+		}
+
+		SecBuffer buffer = buffers.getBuffer (1);
 		buffer.read ();
-		return buffer.getBytes ();
+		return buffer.cbBuffer.intValue ();
+	}
+
+	/** Verifies a MIC made by the peer over a message, as for <tt>GSS_VerifyMIC</tt>.
+	 *  @throws JSchException if the MIC does not match the message.
+	 */
+	public void verifyMIC (byte[] message, int s, int l, byte[] mic, int ms, int ml) throws JSchException {
+		TokenBufferPool pool = TokenBufferPool.getDefault ();
+		Pointer input = pool.borrow (Math.max (l, 1)), token = pool.borrow (Math.max (ml, 1));
+		try {
+			input.write (0, message, s, l);
+			token.write (0, mic, ms, ml);
+			verifyMIC (input, l, token, ml);
+		}
+		finally {
+			pool.release (input, l);
+			pool.release (token, ml);
+		}
+	}
 
-		//SecBuffer.ByReference data = new SecBuffer.ByReference (SECBUFFER_DATA, input);
-		//data.toArray (2);
+	/** Verifies a MIC made by the peer over a message, both held in native memory.
+	 *  @throws JSchException if the MIC does not match the message.
+	 */
+	public void verifyMIC (Pointer message, int length, Pointer mic, int micLength) throws JSchException {
+		State claimed = claim ("verifyMIC", Stage.ESTABLISHED);
 
-		/*
-		SecBufferDesc buffers = new SecBufferDesc ;
-		buffers.
-		buffers.at (1).fill (SECBUFFER_TOKEN, sspiSizes.cbMaxSignature.intValue ());
+		SecBufferDesc buffers = setBuffer (signatureBuffers, 0, SECBUFFER_DATA, message, length);
+		setBuffer (buffers, 1, SECBUFFER_TOKEN, mic, micLength);
 
-		Utils.assertUnchecked (sspiState.lastResult =
-			API.MakeSignature (contextHandle, new NativeLong (0), buffers, new NativeLong (0)),
-			"MakeSignature"
-		);
-		
-		return buffers.at (1).toByteArray ();
-		*/
+		State next = claimed.released ();
+		long start = SSPIMetrics.start ();
+		try {
+			int result = backend.verifySignature (claimed.handle, buffers, 0, new int[1]);
+			SSPIMetrics.record (logger, SSPIMetrics.Phase.VERIFY_SIGNATURE, 0, start, result);
+			Utils.assertOk (logger, result, "VerifySignature");
+		}
+		finally {
+			if (! publish (claimed, next))
+				release (next);
+		}
+	}
+
+	/** Points one of the buffers of a reused descriptor at the given memory. */
+	private static SecBufferDesc setBuffer (SecBufferDesc buffers, int index, int type, Pointer memory, int length) {
+		SecBuffer buffer = buffers.getBuffer (index);
+		buffer.BufferType = new NativeLong (type);
+		buffer.cbBuffer = new NativeLong (length);
+		buffer.pvBuffer = memory;
+		return buffers;
+	}
+
+	/** @return the size of the largest MIC, or the size of a pooled token buffer if unknown. */
+	private int getMaxSignature () {
+		ContextAttributes attributes = state.get ().attributes;
+		if (attributes!=null && attributes.getMaxSignature () > 0)
+			return attributes.getMaxSignature ();
+		return TokenBufferPool.getDefault ().getBufferSize ();
 	}
 
+	/** Releases the context handle and credentials, and returns to the {@link Stage#NEW} stage,
+	 *  so that the context can authenticate again.
+	 *  @return <tt>false</tt> if the context is disposed, or in use by another thread.
+	 */
+	public boolean reset () {
+		for (;;) {
+			State s = state.get ();
+			if (s.busy || s.stage == Stage.DISPOSED)
+				return false;
+			if (s.stage == Stage.NEW && s.handle == null && s.credential == null)
+				return true;
+			// Keep the claim while releasing, since the next handshake reuses the handle.
+			State claimed = s.claimed ();
+			if (state.compareAndSet (s, claimed)) {
+				try { release (s); }
+				finally {
+					if (! publish (claimed, State.NEW))
+						return false;
+				}
+				return true;
+			}
+		}
+	}
+
+	/** Disposes the context, or returns it to the pool of the {@link GSSContextFactory} it came from. */
 	public void dispose () {
+		GSSContextFactory factory = this.factory;
+		if (factory != null && factory.recycle (this))
+			return;
+		for (;;) {
+			State s = state.get ();
+			if (s.stage == Stage.DISPOSED)
+				return;
+			if (state.compareAndSet (s, State.DISPOSED)) {
+				// A thread that holds the claim releases the handles itself.
+				try {
+					if (! s.busy)
+						release (s);
+				}
+				finally { cleanable.clean (); }
+				return;
+			}
+		}
+	}
+
+	/** Claims the state for the calling thread.
+	 *  @return the claimed state, which must be replaced with {@link #publish(State, State)}.
+	 *  @throws IllegalStateException if another thread holds the claim, or the handshake
+	 *          is not in one of the <tt>allowed</tt> stages.
+	 */
+	private State claim (String operation, Stage... allowed) {
+		for (;;) {
+			State s = state.get ();
+			if (s.busy)
+				throw new IllegalStateException ("The GSS context is in use by another thread");
+			boolean found = false;
+			for (Stage stage : allowed)
+				found |= s.stage == stage;
+			if (! found)
+				throw new IllegalStateException ("Cannot " + operation + " a GSS context in the " + s.stage + " stage");
+			State claimed = s.claimed ();
+			if (state.compareAndSet (s, claimed))
+				return claimed;
+		}
+	}
+
+	/** Replaces a claimed state.
+	 *  @return <tt>false</tt> if the context was disposed meanwhile, so that the caller must
+	 *          release the handles of <tt>next</tt> itself.
+	 */
+	private boolean publish (State claimed, State next) {
+		return state.compareAndSet (claimed, next);
+	}
+
+	/** Deletes the context handle and releases the credentials of a state that is no longer reachable. */
+	private void release (State s) {
+		release (s, backend, logger);
+	}
+
+	private static void release (State s, SSPIBackend backend, Logger logger) {
 		try {
-			if (contextHandle!=null && ! contextHandle.isNull ())
-				Secur32.INSTANCE.DeleteSecurityContext (contextHandle);
-			if (credHandle!=null && ! credHandle.isNull ())
-				Secur32.INSTANCE.FreeCredentialsHandle (credHandle);
-		} finally { 
-			sspiState = null;
-			contextHandle = null;
-			credHandle = null;
+			if (s.handle!=null && ! s.handle.isNull ())
+				deleteContext (s.handle, backend, logger);
+		}
+		finally {
+			CredentialCache.release (s.credential);
+		}
+	}
+
+	private void deleteContext (CtxtHandle handle) {
+		deleteContext (handle, backend, logger);
+	}
+
+	private static void deleteContext (CtxtHandle handle, SSPIBackend backend, Logger logger) {
+		long start = SSPIMetrics.start ();
+		int result = 0;
+		try { result = backend.deleteSecurityContext (handle); }
+		finally {
+			SSPIMetrics.record (logger, SSPIMetrics.Phase.DELETE_CONTEXT, 0, start, result);
+			SSPIMetrics.contextDeleted ();
 		}
 	}
 
-	/**Holds curent SSPI state.
+	/**Releases the handles of a context that was garbage collected without being disposed.
+	 * Holds the state, but not the context itself, so that the context can be collected.
 	 *
 	 * @author Joe Khoobyar
 	 */
-	public class SSPIState {
-	    int lastResult;
-	    CtxtHandle handle;
-	    TimeStamp stamp;
-	    byte data[];
-		
-	    public SSPIState (int result, CtxtHandle handle, TimeStamp stamp, byte data[]) {
-	    	this.lastResult = result;
-	    	this.handle = handle;
-	    	this.stamp = stamp;
-	    	if (data != null) {
-		    	this.data = new byte [data.length];
-		    	System.arraycopy (data, 0, this.data, 0, data.length);
-	    	} else {
-	    		this.data = null;
-	    	}
+	private static class Cleanup implements Runnable {
+		private final AtomicReference<State> state;
+		private final SSPIBackend backend;
+		private final Logger logger;
+
+		Cleanup (AtomicReference<State> state, SSPIBackend backend, Logger logger) {
+			this.state = state;
+			this.backend = backend;
+			this.logger = logger;
+		}
+
+		public void run () {
+			State s = state.getAndSet (State.DISPOSED);
+			if (s.stage == Stage.DISPOSED)
+				return;
+			if (s.handle != null)
+				SSPIMetrics.contextLeaked ();
+			release (s, backend, logger);
+		}
+	}
+
+	/**Immutable state of a handshake.  A new state replaces the old one as a whole.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static final class State {
+		static final State NEW = new State (Stage.NEW, false, null, null, null, null, null, 0, 0, 0);
+		static final State DISPOSED = new State (Stage.DISPOSED, false, null, null, null, null, null, 0, 0, 0);
+
+		final Stage stage;
+		final boolean busy;
+		final CredentialCache.Credential credential;
+		final String serverName;
+		final String serverKrbName;
+		final CtxtHandle handle;
+		final ContextAttributes attributes;
+		final int legs;
+		final int lastResult;
+		final int length;
+
+		State (Stage stage, boolean busy, CredentialCache.Credential credential, String serverName, String serverKrbName,
+		       CtxtHandle handle, ContextAttributes attributes, int legs, int lastResult, int length) {
+			this.stage = stage;
+			this.busy = busy;
+			this.credential = credential;
+			this.serverName = serverName;
+			this.serverKrbName = serverKrbName;
+			this.handle = handle;
+			this.attributes = attributes;
+			this.legs = legs;
+			this.lastResult = lastResult;
+			this.length = length;
+		}
+
+		State claimed () {
+			return new State (stage, true, credential, serverName, serverKrbName, handle, attributes, legs, lastResult, length);
+		}
+
+		State released () {
+			return new State (stage, false, credential, serverName, serverKrbName, handle, attributes, legs, lastResult, length);
+		}
+
+		State withResult (int result) {
+			return new State (stage, busy, credential, serverName, serverKrbName, handle, attributes, legs, result, length);
+		}
+
+		public Stage getStage () { return stage; }
+
+		/** @return <tt>true</tt> if a thread is calling into the security package with this state. */
+		public boolean isBusy () { return busy; }
+
+		/** @return the canonical name of the server, once credentials are acquired.  When the service
+		 *          principal name of the server is configured, this is the host name as given. */
+		public String getServerName () { return serverName; }
+
+		/** @return the number of legs initialized so far. */
+		public int getLegs () { return legs; }
+
+		/** @return the result code of the last call into the security package. */
+		public int getLastResult () { return lastResult; }
+
+		public String toString () {
+			return "State[" + stage + (busy ? ", busy" : "") + ", legs=" + legs
+				+ ", lastResult=0x" + Integer.toHexString (lastResult) + "]";
 		}
 	}
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.math.BigInteger;
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.HASH;
+import com.jcraft.jsch.JSchException;
+
+/**The <tt>gss-gex-sha1-*</tt> key exchange (RFC 4462), with a group chosen by the server.
+ *
+ * @author Joe Khoobyar
+ */
+public class GSSKexGexSHA1
+	extends GSSKeyExchange
+{
+	public static final String NAME = "gss-gex-sha1-" + KRB5_SUFFIX;
+
+	static final int MIN = 1024;
+	static final int PREFERRED = 2048;
+	static final int MAX = 8192;
+
+	private byte p[];
+	private byte g[];
+
+	protected HASH createHash () throws Exception {
+		return (HASH) Class.forName (session.getConfig ("sha-1")).newInstance ();
+	}
+
+	protected void start () throws Exception {
+		packet.reset ();
+		buf.putByte ((byte) SSH_MSG_KEXGSS_GROUPREQ);
+		buf.putInt (MIN);
+		buf.putInt (PREFERRED);
+		buf.putInt (MAX);
+		session.write (packet);
+		expect (SSH_MSG_KEXGSS_GROUP);
+	}
+
+	protected boolean receive (int command, Buffer _buf) throws Exception {
+		if (command != SSH_MSG_KEXGSS_GROUP)
+			return super.receive (command, _buf);
+		p = _buf.getMPInt ();
+		g = _buf.getMPInt ();
+		int bits = new BigInteger (1, p).bitLength ();
+		if (bits < MIN || bits > MAX)
+			throw new JSchException ("The server chose a " + bits + " bit group");
+		sendInit (p, g);
+		return true;
+	}
+
+	protected void putGroup (Buffer hash) {
+		hash.putInt (MIN);
+		hash.putInt (PREFERRED);
+		hash.putInt (MAX);
+		hash.putMPInt (p);
+		hash.putMPInt (g);
+	}
+}
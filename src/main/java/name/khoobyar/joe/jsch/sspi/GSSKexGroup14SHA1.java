@@ -0,0 +1,28 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.HASH;
+
+/**The <tt>gss-group14-sha1-*</tt> key exchange (RFC 4462).
+ *
+ * @author Joe Khoobyar
+ */
+public class GSSKexGroup14SHA1
+	extends GSSKeyExchange
+{
+	public static final String NAME = "gss-group14-sha1-" + KRB5_SUFFIX;
+
+	protected HASH createHash () throws Exception {
+		return (HASH) Class.forName (session.getConfig ("sha-1")).newInstance ();
+	}
+
+	protected void start () throws Exception {
+		sendInit (GROUP14_P, GROUP14_G);
+	}
+
+	protected void putGroup (Buffer hash) {
+	}
+}
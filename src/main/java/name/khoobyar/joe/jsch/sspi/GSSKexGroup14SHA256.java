@@ -0,0 +1,44 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.security.MessageDigest;
+
+import com.jcraft.jsch.HASH;
+
+/**The <tt>gss-group14-sha256-*</tt> key exchange (RFC 8732).
+ *
+ * @author Joe Khoobyar
+ */
+public class GSSKexGroup14SHA256
+	extends GSSKexGroup14SHA1
+{
+	public static final String NAME = "gss-group14-sha256-" + KRB5_SUFFIX;
+
+	protected HASH createHash () {
+		return new SHA256 ();
+	}
+
+	/**SHA-256 for JSch, which only ships SHA-1.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class SHA256 implements HASH {
+		private MessageDigest md;
+
+		public int getBlockSize () { return 32; }
+
+		public void init () throws Exception {
+			md = MessageDigest.getInstance ("SHA-256");
+		}
+
+		public void update (byte foo[], int start, int len) {
+			md.update (foo, start, len);
+		}
+
+		public byte[] digest () {
+			return md.digest ();
+		}
+	}
+}
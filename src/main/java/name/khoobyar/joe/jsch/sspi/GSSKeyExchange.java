@@ -0,0 +1,282 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.DH;
+import com.jcraft.jsch.HASH;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyExchange;
+import com.jcraft.jsch.Logger;
+import com.jcraft.jsch.Packet;
+import com.jcraft.jsch.Session;
+
+/**GSS-API authenticated Diffie-Hellman key exchange (RFC 4462), through {@link GSSContextSSPI}.
+ *
+ * <p>The first leg of the Kerberos handshake travels with the client's DH value, and the
+ * server proves its identity by signing the exchange hash with the established context.
+ * Since Kerberos has authenticated the host, the session's <tt>StrictHostKeyChecking</tt>
+ * is turned off once that MIC is verified, so known_hosts no longer has to be managed
+ * for Kerberos-joined hosts.  If the session prefers <tt>gssapi-keyex</tt>, the context
+ * of its first exchange is kept for {@link UserAuthGSSAPIKeyex}, so that user
+ * authentication needs no further round trips; otherwise it is disposed at once.  A
+ * context that user authentication did not take is disposed by {@link #discard(Session)}
+ * or, at the latest, by the next key exchange of the session.
+ *
+ * <p>JSch dispatches each key exchange packet only if it is the one type of message the
+ * exchange expects next.  The server's host key is therefore expected before its
+ * <tt>SSH_MSG_KEXGSS_COMPLETE</tt>, which holds as long as a real host key algorithm is
+ * negotiated (JSch never proposes <tt>null</tt>), and the server must complete the
+ * handshake in one leg, as it does for Kerberos 5.  Servers that answer with
+ * <tt>SSH_MSG_KEXGSS_CONTINUE</tt> or <tt>SSH_MSG_KEXGSS_ERROR</tt> fail the connection.
+ *
+ * @author Joe Khoobyar
+ */
+public abstract class GSSKeyExchange
+	extends KeyExchange
+{
+	/** Suffix of the key exchange names for the Kerberos 5 mechanism
+	 *  (the base64 encoded MD5 hash of its DER encoded OID). */
+	public static final String KRB5_SUFFIX = "toWM5Slw5Ew8Mqkay+al2g==";
+
+	static final int SSH_MSG_KEXGSS_INIT = 30;
+	static final int SSH_MSG_KEXGSS_CONTINUE = 31;
+	static final int SSH_MSG_KEXGSS_COMPLETE = 32;
+	static final int SSH_MSG_KEXGSS_HOSTKEY = 33;
+	static final int SSH_MSG_KEXGSS_ERROR = 34;
+	static final int SSH_MSG_KEXGSS_GROUPREQ = 40;
+	static final int SSH_MSG_KEXGSS_GROUP = 41;
+
+	/** The first exchange of each session, until user authentication takes it. */
+	private static final Map<Session, Exchange> exchanges = new WeakHashMap<Session, Exchange> ();
+
+	protected byte V_S[];
+	protected byte V_C[];
+	protected byte I_S[];
+	protected byte I_C[];
+	protected byte e[];
+	protected DH dh;
+
+	protected final Buffer buf = new Buffer ();
+	protected final Packet packet = new Packet (buf);
+
+	private GSSContextSSPI context;
+	private int state;
+
+	public void init (Session session, byte V_S[], byte V_C[], byte I_S[], byte I_C[]) throws Exception {
+		this.session = session;
+		this.V_S = V_S;
+		this.V_C = V_C;
+		this.I_S = I_S;
+		this.I_C = I_C;
+
+		sha = createHash ();
+		sha.init ();
+		dh = (DH) Class.forName (session.getConfig ("dh")).newInstance ();
+		dh.init ();
+		try { start (); }
+		catch (Exception e) {
+			dispose ();
+			throw e;
+		}
+	}
+
+	/** @return the hash of this exchange. */
+	protected abstract HASH createHash () throws Exception;
+
+	/** Starts the exchange, by calling {@link #sendInit(byte[], byte[])} or by requesting a group. */
+	protected abstract void start () throws Exception;
+
+	/** Appends the group parameters, as they appear in the exchange hash, between K_S and e. */
+	protected abstract void putGroup (Buffer hash);
+
+	/** Processes a message other than the host key or completion, such as a group. */
+	protected boolean receive (int command, Buffer buf) throws Exception {
+		throw new JSchException ("Unexpected GSS key exchange message " + command);
+	}
+
+	/** Creates the security context, and sends its first token along with our DH value. */
+	protected void sendInit (byte p[], byte g[]) throws Exception {
+		context = GSSContextFactory.getDefault ().newContext ();
+		Deadlines deadlines = Deadlines.current ();
+		context.create (session.getUserName (), session.getHost (), deadlines);
+		byte token[] = context.init (null, 0, 0, deadlines);
+		if (token == null)
+			throw new JSchException ("The GSS context produced no initial token");
+
+		dh.setP (p);
+		dh.setG (g);
+		e = dh.getE ();
+
+		packet.reset ();
+		buf.putByte ((byte) SSH_MSG_KEXGSS_INIT);
+		buf.putString (token);
+		buf.putMPInt (e);
+		session.write (packet);
+
+		// The host key precedes completion unless the host key algorithm is "null".
+		String hostKeyAlgorithm = guess (I_S, I_C)[1];
+		expect ("null".equals (hostKeyAlgorithm) ? SSH_MSG_KEXGSS_COMPLETE : SSH_MSG_KEXGSS_HOSTKEY);
+	}
+
+	protected void expect (int state) {
+		this.state = state;
+	}
+
+	public int getState () {
+		return state;
+	}
+
+	public boolean next (Buffer _buf) throws Exception {
+		_buf.getInt ();
+		_buf.getByte ();
+		int command = _buf.getByte ();
+		try {
+			switch (command) {
+			case SSH_MSG_KEXGSS_HOSTKEY:
+				K_S = _buf.getString ();
+				expect (SSH_MSG_KEXGSS_COMPLETE);
+				return true;
+			case SSH_MSG_KEXGSS_COMPLETE:
+				complete (_buf);
+				return true;
+			default:
+				return receive (command, _buf);
+			}
+		}
+		catch (Exception e) {
+			dispose ();
+			throw e;
+		}
+	}
+
+	private void complete (Buffer _buf) throws Exception {
+		byte f[] = _buf.getMPInt ();
+		byte mic[] = _buf.getString ();
+		byte token[] = _buf.getByte () != 0 ? _buf.getString () : null;
+
+		// Finish the handshake with the server's token.
+		if (token != null && context.init (token, 0, token.length, Deadlines.current ()) != null)
+			throw new JSchException ("The GSS context produced a token after the server completed the exchange");
+		if (! context.isEstablished ())
+			throw new JSchException ("The GSS context was not established by the key exchange");
+
+		// Compute the shared secret and the exchange hash.
+		dh.setF (f);
+		K = dh.getK ();
+
+		Buffer hash = new Buffer ();
+		hash.putString (V_C);
+		hash.putString (V_S);
+		hash.putString (I_C);
+		hash.putString (I_S);
+		hash.putString (K_S == null ? new byte[0] : K_S);
+		putGroup (hash);
+		hash.putMPInt (e);
+		hash.putMPInt (f);
+		hash.putMPInt (K);
+		byte foo[] = new byte[hash.getLength ()];
+		hash.getByte (foo);
+		sha.update (foo, 0, foo.length);
+		H = sha.digest ();
+
+		// The server proves its identity by signing the exchange hash.
+		context.verifyMIC (H, 0, H.length, mic, 0, mic.length);
+		Utils.log (Logger.INFO, "GSS key exchange authenticated " + session.getHost ());
+		session.setConfig ("StrictHostKeyChecking", "no");
+
+		// The first exchange of a session fixes the session id, which user authentication signs.
+		// By a later exchange, user authentication is over, so its context is no longer needed.
+		Exchange unused = null;
+		synchronized (exchanges) {
+			if (exchanges.containsKey (session))
+				unused = exchanges.put (session, null);
+			else if (isPreferred (session)) {
+				exchanges.put (session, new Exchange (context, H));
+				context = null;
+			} else
+				exchanges.put (session, null);
+		}
+		if (unused != null)
+			unused.context.dispose ();
+		dispose ();
+		expect (STATE_END);
+	}
+
+	private void dispose () {
+		if (context != null) {
+			context.dispose ();
+			context = null;
+		}
+	}
+
+	public String getKeyType () {
+		if (K_S != null && K_S.length > 8 && K_S[8] == 'd')
+			return "DSA";
+		return "RSA";
+	}
+
+	/** Takes the established context of the first key exchange of a session.
+	 *  @return the exchange, or <tt>null</tt> if the session was not keyed through GSS-API,
+	 *          or its exchange was already taken.
+	 */
+	static Exchange take (Session session) {
+		synchronized (exchanges) {
+			Exchange exchange = exchanges.get (session);
+			if (exchange != null)
+				exchanges.put (session, null);
+			return exchange;
+		}
+	}
+
+	/** Disposes the context of the first key exchange of a session, unless user authentication
+	 *  already took it.  Call this once the session is connected, or has failed to connect.
+	 */
+	public static void discard (Session session) {
+		Exchange exchange = take (session);
+		if (exchange != null)
+			exchange.context.dispose ();
+	}
+
+	/** @return <tt>true</tt> if the session may authenticate with <tt>gssapi-keyex</tt>. */
+	private static boolean isPreferred (Session session) {
+		String methods = session.getConfig ("PreferredAuthentications");
+		return methods != null && ("," + methods.replace (" ", "") + ",").indexOf ("," + UserAuthGSSAPIKeyex.METHOD + ",") >= 0;
+	}
+
+	/**The established context of a key exchange, and the session id it produced.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Exchange {
+		final GSSContextSSPI context;
+		final byte sessionId[];
+
+		Exchange (GSSContextSSPI context, byte sessionId[]) {
+			this.context = context;
+			this.sessionId = sessionId;
+		}
+	}
+
+	/** Fixed group 14 (RFC 3526), shared by the <tt>gss-group14-*</tt> exchanges. */
+	static final byte GROUP14_P[] = toBytes (
+		"00FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A0879"
+		+ "8E3404DDEF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B"
+		+ "0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA4836"
+		+ "1C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804"
+		+ "F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6"
+		+ "955817183995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF"
+	);
+	static final byte GROUP14_G[] = { 2 };
+
+	private static byte[] toBytes (String hex) {
+		byte bytes[] = new byte[hex.length () / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt (hex.substring (2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+}
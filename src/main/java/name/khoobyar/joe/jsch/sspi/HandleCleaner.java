@@ -0,0 +1,153 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.jcraft.jsch.Logger;
+
+/**Releases native handles deterministically, or once their owner is garbage collected.
+ *
+ * <p>An owner registers a cleanup action that must not refer back to the owner.  The
+ * action runs exactly once: when the owner calls {@link Cleanable#clean()}, or else on
+ * the cleaner's daemon thread once the owner becomes phantom reachable, in which case
+ * the owner is counted as leaked and a warning is logged.  When leak tracking is on
+ * (with the <tt>name.khoobyar.joe.jsch.sspi.leaks</tt> system property), the warning
+ * includes the stack trace of the registration.
+ *
+ * @author Joe Khoobyar
+ */
+public class HandleCleaner {
+
+	public static final String TRACK_PROPERTY = "name.khoobyar.joe.jsch.sspi.leaks";
+
+	/**A registered cleanup action.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public interface Cleanable {
+		/** Runs the cleanup action, unless it has already run. */
+		public void clean ();
+	}
+
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object> ();
+	private final ConcurrentMap<Ref, Boolean> refs = new ConcurrentHashMap<Ref, Boolean> ();
+	private final AtomicLong live = new AtomicLong ();
+	private final AtomicLong peak = new AtomicLong ();
+	private final AtomicLong cleaned = new AtomicLong ();
+	private final AtomicLong leaked = new AtomicLong ();
+	private volatile boolean tracking = Boolean.getBoolean (TRACK_PROPERTY);
+
+	public HandleCleaner (String name) {
+		Thread thread = new Thread (name) {
+			public void run () {
+				for (;;) {
+					try { ((Ref) queue.remove ()).leak (); }
+					catch (InterruptedException e) { }
+				}
+			}
+		};
+		thread.setDaemon (true);
+		thread.start ();
+	}
+
+	/** @return the cleaner used for security contexts and token buffers. */
+	public static HandleCleaner getDefault () {
+		return Holder.INSTANCE;
+	}
+
+	/** Registers a cleanup action for <tt>owner</tt>.
+	 *  @param kind    Describes the owner in leak warnings.
+	 *  @param action  Releases the owner's handles; it must not refer to the owner.
+	 */
+	public Cleanable register (Object owner, String kind, Runnable action) {
+		Ref ref = new Ref (owner, kind, action, tracking ? new Throwable ("Allocated here") : null);
+		refs.put (ref, Boolean.TRUE);
+		long count = live.incrementAndGet ();
+		for (long p; count > (p = peak.get ()) && ! peak.compareAndSet (p, count); )
+			;
+		return ref;
+	}
+
+	/** @return <tt>true</tt> if registrations record their stack trace. */
+	public boolean isTracking () { return tracking; }
+	public void setTracking (boolean tracking) { this.tracking = tracking; }
+
+	/** @return the number of owners whose cleanup action has not run yet. */
+	public long getLive () { return live.get (); }
+
+	/** @return the most owners that were ever live at once. */
+	public long getPeak () { return peak.get (); }
+
+	/** @return the number of cleanup actions that were run by their owners. */
+	public long getCleaned () { return cleaned.get (); }
+
+	/** @return the number of cleanup actions that were only run after their owners were garbage collected. */
+	public long getLeaked () { return leaked.get (); }
+
+	public String toString () {
+		return "HandleCleaner[live=" + live.get () + ", peak=" + peak.get ()
+			+ ", cleaned=" + cleaned.get () + ", leaked=" + leaked.get () + "]";
+	}
+
+	/** Formats a leak warning, with the stack trace of the allocation if one was recorded. */
+	static String describeLeak (String kind, Throwable allocation) {
+		StringBuilder sb = new StringBuilder ("Leaked ").append (kind).append (" was released by the garbage collector");
+		if (allocation == null)
+			sb.append (" (set -D").append (TRACK_PROPERTY).append ("=true to see where it was allocated)");
+		else
+			for (StackTraceElement frame : allocation.getStackTrace ())
+				sb.append ("\n\tat ").append (frame);
+		return sb.toString ();
+	}
+
+	private class Ref
+		extends PhantomReference<Object>
+		implements Cleanable
+	{
+		private final String kind;
+		private final Throwable allocation;
+		private final AtomicReference<Runnable> action;
+
+		Ref (Object owner, String kind, Runnable action, Throwable allocation) {
+			super (owner, queue);
+			this.kind = kind;
+			this.allocation = allocation;
+			this.action = new AtomicReference<Runnable> (action);
+		}
+
+		public void clean () {
+			if (run ())
+				cleaned.incrementAndGet ();
+		}
+
+		void leak () {
+			if (run ()) {
+				leaked.incrementAndGet ();
+				Utils.log (Logger.WARN, describeLeak (kind, allocation));
+			}
+		}
+
+		private boolean run () {
+			Runnable action = this.action.getAndSet (null);
+			if (action == null)
+				return false;
+			refs.remove (this);
+			live.decrementAndGet ();
+			clear ();
+			try { action.run (); }
+			catch (RuntimeException e) { Utils.log (Logger.ERROR, "Failed to release a " + kind + ": " + e); }
+			return true;
+		}
+	}
+
+	private static class Holder {
+		static final HandleCleaner INSTANCE = new HandleCleaner ("SSPI handle cleaner");
+	}
+}
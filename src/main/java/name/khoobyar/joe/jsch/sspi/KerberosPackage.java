@@ -0,0 +1,70 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import static com.sun.jna.platform.win32.Sspi.MAX_TOKEN_SIZE;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_OK;
+
+/**Information about the Kerberos security package, probed once per JVM.
+ *
+ * <p>The package is looked up through the default {@link SSPIBackend} the first time it
+ * is needed, rather than by enumerating every installed security package each time
+ * a context is constructed.
+ *
+ * @author Joe Khoobyar
+ */
+public class KerberosPackage {
+
+	/** Name of the SSPI security package. */
+	public static final String NAME = "Kerberos";
+
+	private final int result;
+	private final int capabilities;
+	private final short version;
+	private final short rpcId;
+	private final int maxToken;
+	private final String comment;
+
+	public KerberosPackage (int result, int capabilities, short version, short rpcId, int maxToken, String comment) {
+		this.result = result;
+		this.capabilities = capabilities;
+		this.version = version;
+		this.rpcId = rpcId;
+		this.maxToken = maxToken;
+		this.comment = comment;
+	}
+
+	/** @return a package that could not be found, because of <tt>result</tt>. */
+	public static KerberosPackage unavailable (int result) {
+		return new KerberosPackage (result, 0, (short) 0, (short) 0, MAX_TOKEN_SIZE, null);
+	}
+
+	/** @return the result of probing the Kerberos package, which happens once per JVM. */
+	public static KerberosPackage getInstance () {
+		return SSPIBackend.getDefault ().getKerberosPackage ();
+	}
+
+	/** @return <tt>true</tt> if the Kerberos package is installed. */
+	public static boolean isAvailable () {
+		return getInstance ().isFound ();
+	}
+
+	/** @return <tt>true</tt> if the probe found this package. */
+	public boolean isFound () { return result == SEC_E_OK; }
+
+	/** @return the SSPI result code of the probe. */
+	public int getResult () { return result; }
+
+	/** @return the package capabilities (<tt>SECPKG_FLAG_*</tt>). */
+	public int getCapabilities () { return capabilities; }
+
+	public short getVersion () { return version; }
+
+	public short getRPCID () { return rpcId; }
+
+	/** @return the maximum size of a security token, or <tt>MAX_TOKEN_SIZE</tt> if the package is unavailable. */
+	public int getMaxToken () { return maxToken; }
+
+	public String getComment () { return comment; }
+}
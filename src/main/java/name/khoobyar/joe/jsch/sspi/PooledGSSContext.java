@@ -0,0 +1,64 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import com.jcraft.jsch.GSSContext;
+import com.jcraft.jsch.JSchException;
+
+/**JSch GSS context that borrows a recycled {@link GSSContextSSPI} from the default
+ * {@link GSSContextFactory}.
+ *
+ * <p>JSch constructs one of these by reflection for every authentication attempt, so
+ * construction does no work at all: a pooled context is taken on {@link #create(String, String)}
+ * and given back on {@link #dispose()}.  The blocking phases are bounded by the
+ * {@link Deadlines} of the connecting thread.
+ *
+ * @author Joe Khoobyar
+ */
+public class PooledGSSContext
+	implements GSSContext
+{
+	private GSSContextSSPI context;
+
+	public void create (String user, String host) throws JSchException {
+		if (context == null)
+			context = GSSContextFactory.getDefault ().newContext ();
+		try {
+			context.create (user, host, Deadlines.current ());
+		} catch (SSPITimeoutException e) {
+			context = null;
+			throw e;
+		}
+	}
+
+	public boolean isEstablished () {
+		return context != null && context.isEstablished ();
+	}
+
+	public byte[] init (byte[] token, int s, int l) throws JSchException {
+		try {
+			return context ().init (token, s, l, Deadlines.current ());
+		} catch (SSPITimeoutException e) {
+			context = null;
+			throw e;
+		}
+	}
+
+	public byte[] getMIC (byte[] message, int s, int l) {
+		return context ().getMIC (message, s, l);
+	}
+
+	public void dispose () {
+		GSSContextSSPI context = this.context;
+		this.context = null;
+		if (context != null)
+			context.dispose ();
+	}
+
+	private GSSContextSSPI context () {
+		if (context == null)
+			throw new IllegalStateException ("The GSS context has not been created");
+		return context;
+	}
+}
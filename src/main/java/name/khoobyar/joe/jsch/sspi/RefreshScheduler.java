@@ -0,0 +1,135 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**Refreshes credentials, and anything else that depends on a Kerberos ticket,
+ * shortly before it expires.
+ *
+ * <p>A refresh runs {@link #getLead()} milliseconds before the expiry, less a random
+ * jitter of up to {@link #getJitter()} milliseconds, so that the refreshes of many
+ * items that expire together are spread out.  {@link CredentialCache} schedules the
+ * refresh of every credentials handle it acquires, so that a handshake never has to
+ * fail on an expired handle before a new one is acquired.
+ *
+ * <p>A refresh can come too early: until the ticket is renewed, a new handle expires
+ * when the old one does.  Such a refresh is attempted again after {@link #getRetryDelay()},
+ * rather than rescheduled against an expiry that is already within the lead.
+ *
+ * @author Joe Khoobyar
+ */
+public class RefreshScheduler {
+
+	public static final long DEFAULT_LEAD = 300000L;
+	public static final long DEFAULT_JITTER = 60000L;
+
+	/** The least time between two attempts to refresh the same item (in milliseconds). */
+	public static final long MIN_RETRY_DELAY = 10000L;
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final Random random = new Random ();
+	private volatile long lead = DEFAULT_LEAD;
+	private volatile long jitter = DEFAULT_JITTER;
+	private volatile boolean enabled = true;
+
+	public RefreshScheduler () {
+		executor = new ScheduledThreadPoolExecutor (1, new ThreadFactory () {
+			public Thread newThread (Runnable r) {
+				Thread thread = new Thread (r, "SSPI refresh");
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+	}
+
+	/** @return the scheduler used by {@link CredentialCache}. */
+	public static RefreshScheduler getDefault () {
+		return Holder.INSTANCE;
+	}
+
+	/** @return how long before the expiry a refresh runs (in milliseconds). */
+	public long getLead () { return lead; }
+	public void setLead (long lead) { this.lead = Math.max (lead, 0); }
+
+	/** @return the most a refresh is moved ahead at random (in milliseconds). */
+	public long getJitter () { return jitter; }
+	public void setJitter (long jitter) { this.jitter = Math.max (jitter, 0); }
+
+	/** @return how long a refresh that got nothing newer waits before it is attempted again
+	 *          (in milliseconds); a quarter of the lead, but at least {@link #MIN_RETRY_DELAY}.
+	 */
+	public long getRetryDelay () { return Math.max (lead / 4, MIN_RETRY_DELAY); }
+
+	/** @return <tt>false</tt> if new refreshes are not being scheduled. */
+	public boolean isEnabled () { return enabled; }
+	public void setEnabled (boolean enabled) { this.enabled = enabled; }
+
+	/** @return the number of refreshes waiting to run. */
+	public int getPendingCount () { return executor.getQueue ().size (); }
+
+	/** Runs <tt>refresh</tt> ahead of <tt>expiry</tt> (in milliseconds since the epoch).
+	 *  @return the scheduled refresh, or <tt>null</tt> if nothing was scheduled because
+	 *          the scheduler is disabled or nothing expires.
+	 */
+	public Future<?> schedule (long expiry, Runnable refresh) {
+		return schedule (expiry, lead, refresh);
+	}
+
+	/** Runs <tt>refresh</tt> <tt>lead</tt> milliseconds ahead of <tt>expiry</tt> (in milliseconds since
+	 *  the epoch), for callers that already allowed their own margin ahead of the expiry.
+	 *  @return the scheduled refresh, or <tt>null</tt> if nothing was scheduled because
+	 *          the scheduler is disabled or nothing expires.
+	 */
+	public Future<?> schedule (long expiry, long lead, final Runnable refresh) {
+		if (! enabled || expiry == Long.MAX_VALUE)
+			return null;
+		long delay = expiry - lead - nextJitter () - System.currentTimeMillis ();
+		return submit (Math.max (delay, 0), refresh);
+	}
+
+	/** Runs <tt>refresh</tt> again after {@link #getRetryDelay()}, for a refresh that did not
+	 *  get anything that expires later than what it was meant to replace.
+	 *  @return the scheduled refresh, or <tt>null</tt> if the scheduler is disabled.
+	 */
+	public Future<?> retry (Runnable refresh) {
+		if (! enabled)
+			return null;
+		return submit (getRetryDelay (), refresh);
+	}
+
+	private Future<?> submit (long delay, final Runnable refresh) {
+		return executor.schedule (new Runnable () {
+			public void run () {
+				try { refresh.run (); }
+				catch (RuntimeException e) { Utils.log ("Scheduled refresh failed: " + e); }
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/** Cancels a refresh that is no longer needed, and drops it from the queue so that
+	 *  whatever it refers to is not kept reachable until it was due.
+	 */
+	public void cancel (Future<?> refresh) {
+		if (refresh != null && refresh.cancel (false))
+			executor.purge ();
+	}
+
+	private long nextJitter () {
+		long jitter = this.jitter;
+		if (jitter <= 0)
+			return 0;
+		synchronized (random) {
+			return (long) (random.nextDouble () * jitter);
+		}
+	}
+
+	private static class Holder {
+		static final RefreshScheduler INSTANCE = new RefreshScheduler ();
+	}
+}
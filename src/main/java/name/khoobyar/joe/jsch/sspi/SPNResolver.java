@@ -0,0 +1,251 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import com.jcraft.jsch.JSchException;
+
+/**Resolves the Kerberos service principal name for an SSH host.
+ *
+ * <p>Canonical host names are cached for {@link #getTTL()} milliseconds, and lookup
+ * failures for {@link #getNegativeTTL()} milliseconds.  Concurrent lookups of the same
+ * host share a single query to the {@link NameService}.  Once an entry goes stale it
+ * is still served for up to {@link #getStaleTTL()} milliseconds while it is refreshed
+ * in the background, so that a slow resolver does not sit in the connect path.
+ *
+ * <p>Static host aliases and service principal names can be registered to bypass
+ * name resolution entirely.
+ *
+ * @author Joe Khoobyar
+ */
+public class SPNResolver {
+
+	/** Canonicalizes host names. */
+	public interface NameService {
+		public String getCanonicalHostName (String host) throws UnknownHostException;
+	}
+
+	/** Canonicalizes host names through <tt>InetAddress</tt> (forward and reverse lookup). */
+	public static final NameService SYSTEM = new NameService () {
+		public String getCanonicalHostName (String host) throws UnknownHostException {
+			return InetAddress.getByName (host).getCanonicalHostName ();
+		}
+	};
+
+	public static final long DEFAULT_TTL = 300000L;
+	public static final long DEFAULT_NEGATIVE_TTL = 30000L;
+	public static final long DEFAULT_STALE_TTL = 300000L;
+
+	private static volatile SPNResolver defaultResolver = new SPNResolver ();
+
+	private static ExecutorService refresher;
+
+	private final NameService nameService;
+	private final long ttl;
+	private final long negativeTTL;
+	private final long staleTTL;
+	private final ConcurrentMap<String, String> aliases = new ConcurrentHashMap<String, String> ();
+	private final ConcurrentMap<String, String> principals = new ConcurrentHashMap<String, String> ();
+	private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry> ();
+	private final ConcurrentMap<String, FutureTask<Entry>> pending = new ConcurrentHashMap<String, FutureTask<Entry>> ();
+
+	public SPNResolver () {
+		this (SYSTEM);
+	}
+
+	public SPNResolver (NameService nameService) {
+		this (nameService, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_STALE_TTL);
+	}
+
+	/**
+	 * @param nameService  Used to canonicalize host names.
+	 * @param ttl          How long canonical names are cached (in milliseconds).
+	 * @param negativeTTL  How long lookup failures are cached (in milliseconds).
+	 * @param staleTTL     How long an expired canonical name may be served while it is refreshed (in milliseconds).
+	 */
+	public SPNResolver (NameService nameService, long ttl, long negativeTTL, long staleTTL) {
+		if (nameService == null)
+			throw new IllegalArgumentException ("nameService");
+		this.nameService = nameService;
+		this.ttl = ttl;
+		this.negativeTTL = negativeTTL;
+		this.staleTTL = staleTTL;
+	}
+
+	/** @return the resolver used by {@link GSSContextSSPI}. */
+	public static SPNResolver getDefault () {
+		return defaultResolver;
+	}
+
+	/** Sets the resolver used by {@link GSSContextSSPI}. */
+	public static void setDefault (SPNResolver resolver) {
+		if (resolver == null)
+			throw new IllegalArgumentException ("resolver");
+		defaultResolver = resolver;
+	}
+
+	public NameService getNameService () { return nameService; }
+	public long getTTL () { return ttl; }
+	public long getNegativeTTL () { return negativeTTL; }
+	public long getStaleTTL () { return staleTTL; }
+
+	/** Always canonicalizes <tt>host</tt> as <tt>canonicalName</tt>, without consulting the name service. */
+	public void addAlias (String host, String canonicalName) {
+		aliases.put (key (host), canonicalName);
+	}
+
+	public void removeAlias (String host) {
+		aliases.remove (key (host));
+	}
+
+	/** Always uses <tt>principal</tt> as the service principal name for <tt>host</tt>. */
+	public void addServicePrincipal (String host, String principal) {
+		principals.put (key (host), principal);
+	}
+
+	public void removeServicePrincipal (String host) {
+		principals.remove (key (host));
+	}
+
+	/** Forgets every cached lookup (but not aliases or service principal names). */
+	public void clear () {
+		cache.clear ();
+	}
+
+	/** @return the service principal name to use for <tt>host</tt>. */
+	public String getServicePrincipalName (String host) throws JSchException {
+		String principal = findServicePrincipal (host);
+		if (principal != null)
+			return principal;
+		return "host/" + getCanonicalHostName (host);
+	}
+
+	/** @return the service principal name configured for <tt>host</tt>, or <tt>null</tt> if it must be derived
+	 *          from the canonical host name.  The name service is never consulted.
+	 */
+	public String findServicePrincipal (String host) {
+		return principals.get (key (host));
+	}
+
+	/** @return the canonical name of <tt>host</tt>. */
+	public String getCanonicalHostName (String host) throws JSchException {
+		String key = key (host);
+		String alias = aliases.get (key);
+		if (alias != null)
+			return alias;
+
+		long now = System.currentTimeMillis ();
+		Entry entry = cache.get (key);
+		if (entry != null) {
+			if (now < entry.expires)
+				return entry.get (host);
+			if (entry.name != null && now < entry.expires + staleTTL) {
+				prefetch (host);
+				return entry.name;
+			}
+		}
+		return lookup (key).get (host);
+	}
+
+	/** Starts resolving <tt>host</tt> in the background, unless it is already being resolved. */
+	public void prefetch (String host) {
+		final String key = key (host);
+		if (aliases.containsKey (key) || pending.containsKey (key))
+			return;
+		getRefresher ().execute (new Runnable () {
+			public void run () {
+				try { lookup (key); }
+				catch (JSchException e) { Utils.log ("Failed to refresh host name: " + key); }
+			}
+		});
+	}
+
+	private Entry lookup (final String key) throws JSchException {
+		FutureTask<Entry> task = pending.get (key);
+		if (task == null) {
+			FutureTask<Entry> created = new FutureTask<Entry> (new Callable<Entry> () {
+				public Entry call () {
+					return load (key);
+				}
+			});
+			task = pending.putIfAbsent (key, created);
+			if (task == null) {
+				task = created;
+				try { created.run (); }
+				finally { pending.remove (key, created); }
+			}
+		}
+		try {
+			return task.get ();
+		} catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new JSchException ("Interrupted while canonicalizing host name: " + key, e);
+		} catch (ExecutionException e) {
+			throw new JSchException ("Failed to canonicalize host name: " + key, e.getCause ());
+		}
+	}
+
+	private Entry load (String key) {
+		Entry entry;
+		try {
+			entry = new Entry (nameService.getCanonicalHostName (key), null, System.currentTimeMillis () + ttl);
+		} catch (UnknownHostException e) {
+			entry = new Entry (null, e, System.currentTimeMillis () + negativeTTL);
+		}
+		cache.put (key, entry);
+		return entry;
+	}
+
+	private static String key (String host) {
+		if (host == null)
+			throw new IllegalArgumentException ("host");
+		return host.trim ().toLowerCase (Locale.ENGLISH);
+	}
+
+	private static synchronized ExecutorService getRefresher () {
+		if (refresher == null) {
+			refresher = Executors.newCachedThreadPool (new ThreadFactory () {
+				public Thread newThread (Runnable r) {
+					Thread thread = new Thread (r, "SSPI host name refresh");
+					thread.setDaemon (true);
+					return thread;
+				}
+			});
+		}
+		return refresher;
+	}
+
+	/**A cached canonical name, or lookup failure.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	private static class Entry {
+		final String name;
+		final UnknownHostException failure;
+		final long expires;
+
+		Entry (String name, UnknownHostException failure, long expires) {
+			this.name = name;
+			this.failure = failure;
+			this.expires = expires;
+		}
+
+		String get (String host) throws JSchException {
+			if (name == null)
+				throw new JSchException ("Failed to canonicalize host name: " + host, failure);
+			return name;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import com.jcraft.jsch.JSchException;
+import com.sun.jna.platform.win32.Sspi.CredHandle;
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+import name.khoobyar.joe.jsch.sspi.Utils.SecBufferDesc;
+
+/**Security provider that {@link GSSContextSSPI} authenticates through.
+ *
+ * <p>The calls mirror the SSPI functions of the same name and return SSPI result
+ * codes.  {@link Secur32Backend} calls the native Windows implementation,
+ * {@link GSSAPIBackend} maps them onto the GSS-API of MIT Kerberos elsewhere, and
+ * {@link SimulatedBackend} is a deterministic, pure-Java stand-in for profiling and
+ * testing on any platform.
+ *
+ * <p>The default backend is chosen from the <tt>name.khoobyar.joe.jsch.sspi.backend</tt>
+ * system property, which may be <tt>secur32</tt>, <tt>gssapi</tt>, <tt>simulated</tt>
+ * or the name of an <tt>SSPIBackend</tt> subclass.  Without it, <tt>secur32</tt> is
+ * used on Windows and <tt>gssapi</tt> everywhere else.
+ *
+ * @author Joe Khoobyar
+ */
+public abstract class SSPIBackend {
+
+	/** System property that selects the default backend. */
+	public static final String BACKEND_PROPERTY = "name.khoobyar.joe.jsch.sspi.backend";
+
+	/** SSPI result code (see MSDN for details) */
+	public static final int SEC_E_UNSUPPORTED_FUNCTION = 0x80090302;
+
+	/** SSPI result code (see MSDN for details) */
+	public static final int SEC_E_MESSAGE_ALTERED = 0x8009030F;
+
+	private static volatile SSPIBackend defaultBackend;
+
+	private volatile KerberosPackage kerberosPackage;
+
+	/** @return the backend used by new contexts. */
+	public static SSPIBackend getDefault () {
+		SSPIBackend backend = defaultBackend;
+		if (backend == null) {
+			synchronized (SSPIBackend.class) {
+				if ((backend = defaultBackend) == null)
+					defaultBackend = backend = select (System.getProperty (BACKEND_PROPERTY));
+			}
+		}
+		return backend;
+	}
+
+	/** Sets the backend used by new contexts. */
+	public static void setDefault (SSPIBackend backend) {
+		if (backend == null)
+			throw new IllegalArgumentException ("backend");
+		defaultBackend = backend;
+	}
+
+	private static SSPIBackend select (String name) {
+		if (name==null || name.length () == 0) {
+			SSPIBackend backend = new Secur32Backend ();
+			return backend.isSupported () ? backend : new GSSAPIBackend ();
+		}
+		if ("secur32".equalsIgnoreCase (name))
+			return new Secur32Backend ();
+		if ("gssapi".equalsIgnoreCase (name))
+			return new GSSAPIBackend ();
+		if ("simulated".equalsIgnoreCase (name))
+			return new SimulatedBackend ();
+		try {
+			return (SSPIBackend) Class.forName (name).newInstance ();
+		} catch (Exception e) {
+			throw new IllegalArgumentException ("Invalid " + BACKEND_PROPERTY + ": " + name, e);
+		}
+	}
+
+	public abstract String getName ();
+
+	/** @return <tt>true</tt> if this backend can be used on the running platform. */
+	public abstract boolean isSupported ();
+
+	/** Loads and binds the native library ahead of the first call, so that its cost is
+	 *  not paid by the first thread to authenticate.  Does nothing by default.
+	 *  @throws LinkageError if the library cannot be bound.
+	 */
+	public void bind () {
+	}
+
+	/** @return the Kerberos package, which is probed once per backend. */
+	public KerberosPackage getKerberosPackage () {
+		KerberosPackage pkg = kerberosPackage;
+		if (pkg == null) {
+			synchronized (this) {
+				if ((pkg = kerberosPackage) == null)
+					kerberosPackage = pkg = probePackage (KerberosPackage.NAME);
+			}
+		}
+		return pkg;
+	}
+
+	/** Looks up a security package. */
+	protected abstract KerberosPackage probePackage (String packageName);
+
+	/** @return the logon session of the calling thread, or <tt>0</tt> if unknown. */
+	public abstract long getLogonSessionId ();
+
+	/** @return the user principal name of the calling thread. */
+	public abstract String getUserPrincipalName () throws JSchException;
+
+	/** SSPI function (see MSDN for details) */
+	public abstract int acquireCredentialsHandle (String packageName, CredHandle credential, TimeStamp expiry);
+
+	/** SSPI function (see MSDN for details) */
+	public abstract int freeCredentialsHandle (CredHandle credential);
+
+	/** SSPI function (see MSDN for details).
+	 *  @param attributes  Receives the context attributes in its first element.
+	 */
+	public abstract int initializeSecurityContext (CredHandle credential, CtxtHandle context, String targetName,
+	                                               int contextReq, SecBufferDesc input, CtxtHandle newContext,
+	                                               SecBufferDesc output, int attributes[], TimeStamp expiry);
+
+	/** SSPI function (see MSDN for details) */
+	public abstract int completeAuthToken (CtxtHandle context, SecBufferDesc token);
+
+	/** SSPI function (see MSDN for details) */
+	public abstract int makeSignature (CtxtHandle context, int qop, SecBufferDesc message, int sequence);
+
+	/** SSPI function (see MSDN for details).  Backends that cannot verify signatures
+	 *  return <tt>SEC_E_UNSUPPORTED_FUNCTION</tt>.
+	 *  @param qop  Receives the quality of protection in its first element.
+	 */
+	public int verifySignature (CtxtHandle context, SecBufferDesc message, int sequence, int qop[]) {
+		return SEC_E_UNSUPPORTED_FUNCTION;
+	}
+
+	/** SSPI function (see MSDN for details) */
+	public abstract int deleteSecurityContext (CtxtHandle context);
+
+	/** Queries the attributes of an established context.
+	 *  @param flags   The context attributes returned by {@link #initializeSecurityContext}.
+	 *  @param expiry  The expiry returned by {@link #initializeSecurityContext}.
+	 */
+	public abstract ContextAttributes queryContextAttributes (CtxtHandle context, int flags, TimeStamp expiry);
+
+	public String toString () {
+		return getName ();
+	}
+}
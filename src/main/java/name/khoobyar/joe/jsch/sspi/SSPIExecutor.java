@@ -0,0 +1,155 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Logger;
+
+import name.khoobyar.joe.jsch.sspi.SSPIMetrics.Phase;
+
+/**Runs the blocking steps of authentication, so that their callers can stop waiting.
+ *
+ * <p>A call that misses its deadline keeps running on its worker thread, since a
+ * native call cannot be interrupted; whatever it acquires is released when it returns
+ * (see {@link GSSContextSSPI}).  The native calls run on a bounded pool of platform
+ * daemon threads (<tt>name.khoobyar.joe.jsch.sspi.workers</tt>, 8 by default), rather
+ * than on virtual threads, since a native call pins the carrier of a virtual thread and
+ * a few hung calls would stall every virtual thread in the JVM.  If every worker is
+ * stuck, later phases wait in the queue and still fail at their deadlines, and a phase
+ * that misses its deadline before it started never runs.
+ *
+ * <p>Whole connections, which mostly wait on sockets with their own timeouts, are
+ * submitted to a separate pool, so that they never hold a worker that their own
+ * phases need.
+ *
+ * @author Joe Khoobyar
+ */
+public class SSPIExecutor {
+
+	public static final String WORKERS_PROPERTY = "name.khoobyar.joe.jsch.sspi.workers";
+	public static final int DEFAULT_WORKERS = 8;
+
+	private final ExecutorService workers;
+	private final ExecutorService connections;
+
+	/** Creates an executor with the given number of workers for native calls. */
+	public SSPIExecutor (int workers) {
+		this (newWorkers (workers), newConnections ());
+	}
+
+	/**
+	 * @param workers      Runs native calls; should be bounded, and must not run on virtual threads.
+	 * @param connections  Runs the tasks given to {@link #submit(Callable)}; must not be <tt>workers</tt>.
+	 */
+	public SSPIExecutor (ExecutorService workers, ExecutorService connections) {
+		if (workers == null || connections == null || workers == connections)
+			throw new IllegalArgumentException ("workers and connections must be distinct executors");
+		this.workers = workers;
+		this.connections = connections;
+	}
+
+	/** @return the executor used for authentication with deadlines. */
+	public static SSPIExecutor getDefault () {
+		return Holder.INSTANCE;
+	}
+
+	/** @return the executor that runs native calls. */
+	public ExecutorService getExecutorService () { return workers; }
+
+	/** Runs a whole connection, or other work that waits on native calls, apart from the workers. */
+	public <T> Future<T> submit (Callable<T> task) {
+		return connections.submit (task);
+	}
+
+	/** Runs a phase, and waits for it until its deadline.
+	 *  @param timeout  The deadline in milliseconds, or <tt>0</tt> to run the phase on the calling thread.
+	 *  @throws SSPITimeoutException if the deadline passes first.
+	 */
+	public <T> T call (Phase phase, long timeout, Callable<T> task) throws JSchException {
+		try {
+			if (timeout <= 0)
+				return task.call ();
+			Future<T> future = workers.submit (task);
+			try {
+				return future.get (timeout, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (future.cancel (false) && workers instanceof ThreadPoolExecutor && future instanceof Runnable)
+					((ThreadPoolExecutor) workers).remove ((Runnable) future);
+				SSPIMetrics.timedOut ();
+				Utils.log (Logger.WARN, phase + " missed its deadline of " + timeout + "ms");
+				throw new SSPITimeoutException (phase, timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread ().interrupt ();
+				throw new JSchException ("Interrupted while waiting for " + phase, e);
+			} catch (ExecutionException e) {
+				throw e.getCause ();
+			}
+		} catch (JSchException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new JSchException (phase + " failed: " + e, e);
+		}
+	}
+
+	public String toString () {
+		if (workers instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+			return "SSPIExecutor[workers=" + pool.getMaximumPoolSize () + ", active=" + pool.getActiveCount ()
+				+ ", queued=" + pool.getQueue ().size () + "]";
+		}
+		return "SSPIExecutor[" + workers + "]";
+	}
+
+	private static ExecutorService newWorkers (int count) {
+		if (count <= 0)
+			throw new IllegalArgumentException ("workers must be positive");
+		ThreadPoolExecutor pool = new ThreadPoolExecutor (count, count, 60L, TimeUnit.SECONDS,
+		                                                  new LinkedBlockingQueue<Runnable> (), new DaemonThreadFactory ("SSPI worker"));
+		pool.allowCoreThreadTimeOut (true);
+		return pool;
+	}
+
+	private static ExecutorService newConnections () {
+		return Executors.newCachedThreadPool (new DaemonThreadFactory ("SSPI connect"));
+	}
+
+	/**Names daemon threads after what they run.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger ();
+
+		DaemonThreadFactory (String name) {
+			this.name = name;
+		}
+
+		public Thread newThread (Runnable r) {
+			Thread thread = new Thread (r, name + " #" + count.incrementAndGet ());
+			thread.setDaemon (true);
+			return thread;
+		}
+	}
+
+	private static class Holder {
+		static final SSPIExecutor INSTANCE = new SSPIExecutor (Integer.getInteger (WORKERS_PROPERTY, DEFAULT_WORKERS));
+	}
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.jcraft.jsch.Logger;
+
+/**Latency histograms and counters for every phase of SSPI authentication.
+ *
+ * <p>Each phase is timed with {@link #start()} and {@link #record(Phase, int, long, int)}.
+ * When metrics are disabled, <tt>start()</tt> returns <tt>0</tt> without reading the clock,
+ * and <tt>record</tt> only passes the call on to {@link Utils#event(Phase, int, int, long)}
+ * for tracing.  Metrics are enabled unless the <tt>name.khoobyar.joe.jsch.sspi.metrics</tt>
+ * system property is <tt>false</tt>.  The live handle counts are kept either way.
+ *
+ * <p>Measurements are also passed to every registered {@link Sink}, and the metrics can be
+ * published as the <tt>name.khoobyar.joe.jsch.sspi:type=SSPIMetrics</tt> MBean, either by
+ * calling {@link #registerMBean()} or by setting the <tt>name.khoobyar.joe.jsch.sspi.jmx</tt>
+ * system property to <tt>true</tt>.
+ *
+ * @author Joe Khoobyar
+ */
+public class SSPIMetrics implements SSPIMetricsMBean {
+
+	public static final String ENABLED_PROPERTY = "name.khoobyar.joe.jsch.sspi.metrics";
+	public static final String JMX_PROPERTY = "name.khoobyar.joe.jsch.sspi.jmx";
+	public static final String OBJECT_NAME = "name.khoobyar.joe.jsch.sspi:type=SSPIMetrics";
+
+	/** Legs beyond this one share a histogram. */
+	public static final int MAX_LEGS = 4;
+
+	/**A timed phase of authentication.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public enum Phase {
+		CANONICALIZE_HOST, ACQUIRE_CREDENTIALS, INITIALIZE_CONTEXT, COMPLETE_AUTH_TOKEN, MAKE_SIGNATURE, QUERY_ATTRIBUTES,
+		DELETE_CONTEXT, FREE_CREDENTIALS, VERIFY_SIGNATURE
+	}
+
+	/**Receives every measurement, e.g. to forward it to a metrics library.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public interface Sink {
+		/**
+		 * @param phase   The phase that was timed.
+		 * @param leg     The leg of <tt>INITIALIZE_CONTEXT</tt> (starting at 1), or <tt>0</tt>.
+		 * @param nanos   How long the phase took.
+		 * @param result  The SSPI result code of the phase.
+		 */
+		public void record (Phase phase, int leg, long nanos, int result);
+	}
+
+	private static final SSPIMetrics INSTANCE = new SSPIMetrics ();
+
+	private static volatile boolean enabled = ! "false".equalsIgnoreCase (System.getProperty (ENABLED_PROPERTY));
+
+	private static final Histogram histograms[] = new Histogram[Phase.values ().length + MAX_LEGS - 1];
+	private static final ConcurrentMap<Integer, AtomicLong> results = new ConcurrentHashMap<Integer, AtomicLong> ();
+	private static final AtomicLong liveCredentials = new AtomicLong ();
+	private static final AtomicLong peakCredentials = new AtomicLong ();
+	private static final AtomicLong liveContexts = new AtomicLong ();
+	private static final AtomicLong peakContexts = new AtomicLong ();
+	private static final AtomicLong leakedContexts = new AtomicLong ();
+	private static final AtomicLong timeouts = new AtomicLong ();
+	private static final List<Sink> sinks = new CopyOnWriteArrayList<Sink> ();
+
+	static {
+		for (Phase phase : Phase.values ())
+			for (int leg = 1; leg <= (phase == Phase.INITIALIZE_CONTEXT ? MAX_LEGS : 1); leg++)
+				histograms[index (phase, leg)] = new Histogram (phase == Phase.INITIALIZE_CONTEXT ? phase + "[" + leg + "]" : phase.toString ());
+		if (Boolean.getBoolean (JMX_PROPERTY))
+			registerMBean ();
+	}
+
+	private SSPIMetrics () {
+	}
+
+	/** @return the MBean that publishes these metrics. */
+	public static SSPIMetrics getInstance () {
+		return INSTANCE;
+	}
+
+	/** @return the start time of a phase, or <tt>0</tt> if metrics are disabled. */
+	public static long start () {
+		return enabled ? System.nanoTime () : 0L;
+	}
+
+	/** Records the end of a phase.
+	 *  @param leg     The leg of <tt>INITIALIZE_CONTEXT</tt> (starting at 1), or <tt>0</tt>.
+	 *  @param start   The value returned by {@link #start()}.
+	 *  @param result  The SSPI result code of the phase.
+	 */
+	public static void record (Phase phase, int leg, long start, int result) {
+		record (Utils.getLogger (), phase, leg, start, result);
+	}
+
+	/** Records the end of a phase, tracing it through the given logger. */
+	public static void record (Logger logger, Phase phase, int leg, long start, int result) {
+		if (start == 0L) {
+			Utils.event (logger, phase, leg, result, 0L);
+			return;
+		}
+		long nanos = System.nanoTime () - start;
+		Utils.event (logger, phase, leg, result, nanos);
+		histograms[index (phase, leg)].record (nanos);
+
+		AtomicLong count = results.get (result);
+		if (count == null) {
+			AtomicLong created = new AtomicLong ();
+			count = results.putIfAbsent (result, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet ();
+
+		for (Sink sink : sinks)
+			sink.record (phase, leg, nanos, result);
+	}
+
+	static void credentialAcquired () { increment (liveCredentials, peakCredentials); }
+	static void credentialFreed () { liveCredentials.decrementAndGet (); }
+	static void contextCreated () { increment (liveContexts, peakContexts); }
+	static void contextDeleted () { liveContexts.decrementAndGet (); }
+	static void contextLeaked () { leakedContexts.incrementAndGet (); }
+	static void timedOut () { timeouts.incrementAndGet (); }
+
+	private static void increment (AtomicLong live, AtomicLong peak) {
+		long count = live.incrementAndGet ();
+		for (long p; count > (p = peak.get ()) && ! peak.compareAndSet (p, count); )
+			;
+	}
+
+	public static void addSink (Sink sink) { sinks.add (sink); }
+	public static void removeSink (Sink sink) { sinks.remove (sink); }
+
+	/** @return the latency histogram of a phase.
+	 *  @param leg  The leg of <tt>INITIALIZE_CONTEXT</tt> (starting at 1); ignored for other phases.
+	 */
+	public static Histogram getHistogram (Phase phase, int leg) {
+		return histograms[index (phase, leg)];
+	}
+
+	/** @return the number of recorded calls that returned each SSPI result code. */
+	public static SortedMap<Integer, Long> getResults () {
+		SortedMap<Integer, Long> map = new TreeMap<Integer, Long> ();
+		for (Map.Entry<Integer, AtomicLong> entry : results.entrySet ())
+			map.put (entry.getKey (), entry.getValue ().get ());
+		return map;
+	}
+
+	/** Publishes the metrics as an MBean named {@link #OBJECT_NAME}.
+	 *  @return <tt>true</tt> if the MBean is registered.
+	 */
+	public static synchronized boolean registerMBean () {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+			ObjectName name = new ObjectName (OBJECT_NAME);
+			if (! server.isRegistered (name))
+				server.registerMBean (INSTANCE, name);
+			return true;
+		} catch (Exception e) {
+			Utils.log ("Failed to register " + OBJECT_NAME + ": " + e);
+			return false;
+		}
+	}
+
+	public static synchronized void unregisterMBean () {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+			ObjectName name = new ObjectName (OBJECT_NAME);
+			if (server.isRegistered (name))
+				server.unregisterMBean (name);
+		} catch (Exception e) {
+			Utils.log ("Failed to unregister " + OBJECT_NAME + ": " + e);
+		}
+	}
+
+	public boolean isEnabled () { return enabled; }
+	public void setEnabled (boolean enabled) { SSPIMetrics.enabled = enabled; }
+
+	public long getLiveCredentials () { return liveCredentials.get (); }
+	public long getPeakCredentials () { return peakCredentials.get (); }
+	public long getLiveContexts () { return liveContexts.get (); }
+	public long getPeakContexts () { return peakContexts.get (); }
+	public long getLeakedContexts () { return leakedContexts.get (); }
+	public long getTimeouts () { return timeouts.get (); }
+
+	public long getLiveBuffers () { return TokenBufferPool.getDefault ().getLive (); }
+	public long getPeakBuffers () { return TokenBufferPool.getDefault ().getPeak (); }
+	public long getLeakedBuffers () { return TokenBufferPool.getDefault ().getLeaked (); }
+
+	public boolean isTrackingLeaks () { return HandleCleaner.getDefault ().isTracking (); }
+	public void setTrackingLeaks (boolean tracking) { HandleCleaner.getDefault ().setTracking (tracking); }
+
+	public String[] getResultCounts () {
+		List<String> list = new ArrayList<String> ();
+		for (Map.Entry<Integer, Long> entry : getResults ().entrySet ())
+			list.add ("0x" + Integer.toHexString (entry.getKey ()) + "=" + entry.getValue ());
+		return list.toArray (new String[list.size ()]);
+	}
+
+	public String[] getLatencies () {
+		String summaries[] = new String[histograms.length];
+		for (int i = 0; i < histograms.length; i++)
+			summaries[i] = histograms[i].toString ();
+		return summaries;
+	}
+
+	public void reset () {
+		for (Histogram histogram : histograms)
+			histogram.reset ();
+		results.clear ();
+	}
+
+	private static int index (Phase phase, int leg) {
+		int index = phase.ordinal ();
+		if (phase.ordinal () > Phase.INITIALIZE_CONTEXT.ordinal ())
+			index += MAX_LEGS - 1;
+		else if (phase == Phase.INITIALIZE_CONTEXT)
+			index += Math.max (0, Math.min (leg, MAX_LEGS) - 1);
+		return index;
+	}
+
+	/**Lock-free latency histogram with power-of-two buckets (in nanoseconds).
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class Histogram {
+		private final String name;
+		private final AtomicLongArray buckets = new AtomicLongArray (64);
+		private final AtomicLong count = new AtomicLong ();
+		private final AtomicLong total = new AtomicLong ();
+		private final AtomicLong max = new AtomicLong ();
+
+		Histogram (String name) {
+			this.name = name;
+		}
+
+		void record (long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			buckets.incrementAndGet (63 - Long.numberOfLeadingZeros (nanos | 1));
+			count.incrementAndGet ();
+			total.addAndGet (nanos);
+			for (long m; nanos > (m = max.get ()) && ! max.compareAndSet (m, nanos); )
+				;
+		}
+
+		void reset () {
+			for (int i = 0; i < buckets.length (); i++)
+				buckets.set (i, 0);
+			count.set (0);
+			total.set (0);
+			max.set (0);
+		}
+
+		public String getName () { return name; }
+		public long getCount () { return count.get (); }
+		public long getTotalNanos () { return total.get (); }
+		public long getMaxNanos () { return max.get (); }
+
+		public long getMeanNanos () {
+			long count = this.count.get ();
+			return count > 0 ? total.get () / count : 0;
+		}
+
+		/** @return an upper bound on the given percentile (between 0 and 100), within a factor of two. */
+		public long getPercentileNanos (double percentile) {
+			long count = this.count.get ();
+			if (count == 0)
+				return 0;
+			long rank = (long) Math.ceil (count * percentile / 100.0), seen = 0;
+			for (int i = 0; i < buckets.length (); i++)
+				if ((seen += buckets.get (i)) >= rank)
+					return Math.min ((2L << i) - 1, max.get ());
+			return max.get ();
+		}
+
+		public String toString () {
+			return name + "[count=" + getCount () + ", mean=" + getMeanNanos () / 1000 + "us, p50="
+				+ getPercentileNanos (50) / 1000 + "us, p99=" + getPercentileNanos (99) / 1000
+				+ "us, max=" + getMaxNanos () / 1000 + "us]";
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+/**Management interface of {@link SSPIMetrics}.
+ *
+ * @author Joe Khoobyar
+ */
+public interface SSPIMetricsMBean {
+
+	public boolean isEnabled ();
+	public void setEnabled (boolean enabled);
+
+	/** @return the number of credentials handles that were acquired and not yet freed. */
+	public long getLiveCredentials ();
+
+	/** @return the most credentials handles that were ever live at once. */
+	public long getPeakCredentials ();
+
+	/** @return the number of security contexts that were created and not yet deleted. */
+	public long getLiveContexts ();
+
+	/** @return the most security contexts that were ever live at once. */
+	public long getPeakContexts ();
+
+	/** @return the number of security contexts that were only deleted once their owner was garbage collected. */
+	public long getLeakedContexts ();
+
+	/** @return the number of phases that missed their deadline (see {@link Deadlines}). */
+	public long getTimeouts ();
+
+	/** @return the number of pooled token buffers that were allocated and not yet freed. */
+	public long getLiveBuffers ();
+
+	/** @return the most pooled token buffers that were ever live at once. */
+	public long getPeakBuffers ();
+
+	/** @return the number of token buffers that were garbage collected while still borrowed. */
+	public long getLeakedBuffers ();
+
+	/** @return <tt>true</tt> if the allocation stack of every handle is recorded, to be logged if it leaks. */
+	public boolean isTrackingLeaks ();
+	public void setTrackingLeaks (boolean tracking);
+
+	/** @return the number of calls that returned each SSPI result code, as <tt>0x&lt;code&gt;=&lt;count&gt;</tt>. */
+	public String[] getResultCounts ();
+
+	/** @return a summary of the latency histogram of each phase. */
+	public String[] getLatencies ();
+
+	/** Clears every histogram and result counter (but not the live handle counts). */
+	public void reset ();
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import com.jcraft.jsch.JSchException;
+
+import name.khoobyar.joe.jsch.sspi.SSPIMetrics.Phase;
+
+/**Thrown when a phase of authentication misses its deadline (see {@link Deadlines}).
+ *
+ * @author Joe Khoobyar
+ */
+public class SSPITimeoutException
+	extends JSchException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final Phase phase;
+	private final long timeout;
+
+	public SSPITimeoutException (Phase phase, long timeout) {
+		super (phase + " did not finish within " + timeout + "ms");
+		this.phase = phase;
+		this.timeout = timeout;
+	}
+
+	/** @return the phase that missed its deadline. */
+	public Phase getPhase () { return phase; }
+
+	/** @return the deadline that was missed, in milliseconds. */
+	public long getTimeout () { return timeout; }
+}
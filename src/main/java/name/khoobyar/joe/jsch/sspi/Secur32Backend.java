@@ -0,0 +1,181 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import static com.sun.jna.platform.win32.Secur32.EXTENDED_NAME_FORMAT.NameUserPrincipal;
+import static com.sun.jna.platform.win32.Sspi.SECPKG_CRED_OUTBOUND;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_OK;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_SECPKG_NOT_FOUND;
+import static name.khoobyar.joe.jsch.sspi.Utils.Secur32.SECPKG_ATTR_NAMES;
+import static name.khoobyar.joe.jsch.sspi.Utils.Secur32.SECPKG_ATTR_NATIVE_NAMES;
+import static name.khoobyar.joe.jsch.sspi.Utils.Secur32.SECPKG_ATTR_SIZES;
+
+import com.jcraft.jsch.JSchException;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.Secur32;
+import com.sun.jna.platform.win32.Sspi.CredHandle;
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.ptr.PointerByReference;
+import name.khoobyar.joe.jsch.sspi.Utils.SecBufferDesc;
+import name.khoobyar.joe.jsch.sspi.Utils.Secur32.SecPkgContext_Names;
+import name.khoobyar.joe.jsch.sspi.Utils.Secur32.SecPkgContext_NativeNames;
+import name.khoobyar.joe.jsch.sspi.Utils.Secur32.SecPkgContext_Sizes;
+import name.khoobyar.joe.jsch.sspi.Utils.Secur32.SecPkgInfo;
+
+/**Backend that calls the native SSPI implementation in <tt>Secur32.dll</tt>.
+ *
+ * <p>The calls on the authentication hot path go through {@link Secur32Binding#getInstance()}.
+ *
+ * @author Joe Khoobyar
+ */
+public class Secur32Backend
+	extends SSPIBackend
+{
+	public String getName () { return "secur32"; }
+
+	/** @return <tt>true</tt> on Windows XP or above. */
+	public boolean isSupported () {
+		String osname = System.getProperty ("os.name");
+		if (osname!=null && osname.toLowerCase().startsWith ("windows")) {
+			String osver = System.getProperty ("os.version");
+			if (osver != null) {
+				osver = osver.trim ();
+				int n = osver.indexOf ('.');
+				if (n > 0)
+					osver = osver.substring (0, n);
+				return Integer.parseInt (osver) >= 5;
+			}
+		}
+		return false;
+	}
+
+	/** Binds <tt>Secur32.dll</tt>, both the hot path binding and the mapped interfaces. */
+	public void bind () {
+		Secur32Binding.getInstance ();
+		if (Utils.Secur32.INSTANCE == null || Secur32.INSTANCE == null || Kernel32.INSTANCE == null)
+			throw new UnsatisfiedLinkError ("Secur32.dll");
+	}
+
+	protected KerberosPackage probePackage (String packageName) {
+		PointerByReference info = new PointerByReference ();
+		int result;
+		try {
+			result = Utils.Secur32.INSTANCE.QuerySecurityPackageInfo (packageName, info);
+		} catch (LinkageError e) {
+			Utils.log ("Unable to load Secur32: " + e);
+			result = SEC_E_SECPKG_NOT_FOUND;
+		}
+		Utils.logAndDecode ("QuerySecurityPackageInfo(" + packageName + ")", result);
+		if (result != SEC_E_OK || info.getValue () == null)
+			return KerberosPackage.unavailable (result == SEC_E_OK ? SEC_E_SECPKG_NOT_FOUND : result);
+
+		try {
+			SecPkgInfo pkg = new SecPkgInfo (info.getValue ());
+			return new KerberosPackage (
+				result, pkg.fCapabilities.intValue (), pkg.wVersion, pkg.wRPCID,
+				pkg.cbMaxToken.intValue (), pkg.Comment == null ? null : pkg.Comment.toString ()
+			);
+		}
+		finally {
+			Utils.Secur32.INSTANCE.FreeContextBuffer (info.getValue ());
+		}
+	}
+
+	public long getLogonSessionId () {
+		return Utils.getLogonSessionId ();
+	}
+
+	public String getUserPrincipalName () throws JSchException {
+		char nameBuffer[] = new char[255];
+		IntByReference nameLength = new IntByReference (nameBuffer.length);
+		if (Secur32.INSTANCE.GetUserNameEx (NameUserPrincipal, nameBuffer, nameLength))
+			return new String (nameBuffer, 0, nameLength.getValue ());
+		Utils.assertOk (Kernel32.INSTANCE.GetLastError (), "GetUserNameEx");
+		return null;
+	}
+
+	public int acquireCredentialsHandle (String packageName, CredHandle credential, TimeStamp expiry) {
+		return Secur32.INSTANCE.AcquireCredentialsHandle (
+			null, packageName, new NativeLong (SECPKG_CRED_OUTBOUND),
+			null, null, null, null, credential, expiry
+		);
+	}
+
+	public int freeCredentialsHandle (CredHandle credential) {
+		return Secur32.INSTANCE.FreeCredentialsHandle (credential);
+	}
+
+	public int initializeSecurityContext (CredHandle credential, CtxtHandle context, String targetName,
+	                                      int contextReq, SecBufferDesc input, CtxtHandle newContext,
+	                                      SecBufferDesc output, int attributes[], TimeStamp expiry) {
+		return Secur32Binding.getInstance ().initializeSecurityContext (
+			credential, context, targetName, contextReq, input, newContext, output, attributes, expiry
+		);
+	}
+
+	public int completeAuthToken (CtxtHandle context, SecBufferDesc token) {
+		return Secur32Binding.getInstance ().completeAuthToken (context, token);
+	}
+
+	public int makeSignature (CtxtHandle context, int qop, SecBufferDesc message, int sequence) {
+		return Secur32Binding.getInstance ().makeSignature (context, qop, message, sequence);
+	}
+
+	public int verifySignature (CtxtHandle context, SecBufferDesc message, int sequence, int qop[]) {
+		NativeLongByReference flags = new NativeLongByReference (new NativeLong (0));
+		int result = Utils.Secur32.INSTANCE.VerifySignature (context, message, new NativeLong (sequence), flags);
+		qop[0] = flags.getValue ().intValue ();
+		return result;
+	}
+
+	public int deleteSecurityContext (CtxtHandle context) {
+		return Secur32.INSTANCE.DeleteSecurityContext (context);
+	}
+
+	public ContextAttributes queryContextAttributes (CtxtHandle context, int flags, TimeStamp expiry) {
+		int maxToken = 0, maxSignature = 0, blockSize = 0, securityTrailer = 0;
+		String userName = null, clientName = null, serverName = null;
+
+		// Get information about sizes and lengths related to this transport.
+		SecPkgContext_Sizes sizes = new SecPkgContext_Sizes ();
+		if (query (context, SECPKG_ATTR_SIZES, sizes, "QueryContextAttributes(SECPKG_ATTR_SIZES)")) {
+			maxToken = sizes.cbMaxToken.intValue ();
+			maxSignature = sizes.cbMaxSignature.intValue ();
+			blockSize = sizes.cbBlockSize.intValue ();
+			securityTrailer = sizes.cbSecurityTrailer.intValue ();
+		}
+
+		// Get the names of entities related to this connection.
+		SecPkgContext_Names names = new SecPkgContext_Names ();
+		if (query (context, SECPKG_ATTR_NAMES, names, "QueryContextAttributes(SECPKG_ATTR_NAMES)"))
+			userName = takeString (names.sUserName);
+		SecPkgContext_NativeNames nativeNames = new SecPkgContext_NativeNames ();
+		if (query (context, SECPKG_ATTR_NATIVE_NAMES, nativeNames, "QueryContextAttributes(SECPKG_ATTR_NATIVE_NAMES)")) {
+			clientName = takeString (nativeNames.sClientName);
+			serverName = takeString (nativeNames.sServerName);
+		}
+
+		return new ContextAttributes (flags, Utils.toMillis (expiry), maxToken, maxSignature, blockSize,
+		                              securityTrailer, userName, clientName, serverName);
+	}
+
+	private static boolean query (CtxtHandle context, int attribute, Structure buffer, String message) {
+		int result = Utils.Secur32.INSTANCE.QueryContextAttributes (context, new NativeLong (attribute), buffer);
+		Utils.logAndDecode (message, result);
+		return result == SEC_E_OK;
+	}
+
+	private static String takeString (Pointer p) {
+		if (p == null)
+			return null;
+		try { return p.getString (0, true); }
+		finally { Utils.logAndDecode ("FreeContextBuffer", Utils.Secur32.INSTANCE.FreeContextBuffer (p)); }
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import static com.sun.jna.platform.win32.Sspi.SECURITY_NATIVE_DREP;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.WString;
+import com.sun.jna.platform.win32.Sspi.CredHandle;
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.win32.StdCallLibrary;
+import name.khoobyar.joe.jsch.sspi.Utils.SecBufferDesc;
+
+/**Binding of the SSPI calls on the authentication hot path.
+ *
+ * <p>Two bindings are available: a direct-mapped one ({@link #direct()}), which
+ * registers native methods with primitive signatures through <tt>Native.register</tt>,
+ * and the interface-mapped {@link Utils.Secur32} proxy ({@link #mapped()}).  The
+ * direct binding is chosen at load time unless the <tt>name.khoobyar.joe.jsch.sspi.binding</tt>
+ * system property is set to <tt>mapped</tt>, or the direct binding fails to load.
+ *
+ * @author Joe Khoobyar
+ */
+public abstract class Secur32Binding {
+
+	/** System property that selects the binding (<tt>direct</tt> or <tt>mapped</tt>). */
+	public static final String BINDING_PROPERTY = "name.khoobyar.joe.jsch.sspi.binding";
+
+	/** @return the binding chosen at load time. */
+	public static Secur32Binding getInstance () {
+		return Holder.INSTANCE;
+	}
+
+	/** @return the interface-mapped binding. */
+	public static Secur32Binding mapped () {
+		return Mapped.INSTANCE;
+	}
+
+	/** @return the direct-mapped binding.
+	 *  @throws UnsatisfiedLinkError if it cannot be loaded.
+	 */
+	public static Secur32Binding direct () {
+		return Direct.INSTANCE;
+	}
+
+	public abstract String getName ();
+
+	/** Win32 API function (see MSDN for details).
+	 *  @param attributes  Receives the context attributes in its first element.
+	 */
+	public abstract int initializeSecurityContext (CredHandle credential, CtxtHandle context, String targetName,
+	                                               int contextReq, SecBufferDesc input, CtxtHandle newContext,
+	                                               SecBufferDesc output, int attributes[], TimeStamp expiry);
+
+	/** Win32 API function (see MSDN for details) */
+	public abstract int completeAuthToken (CtxtHandle context, SecBufferDesc token);
+
+	/** Win32 API function (see MSDN for details) */
+	public abstract int makeSignature (CtxtHandle context, int qop, SecBufferDesc message, int sequence);
+
+	public String toString () {
+		return getName ();
+	}
+
+	private static Secur32Binding select () {
+		if (! "mapped".equalsIgnoreCase (System.getProperty (BINDING_PROPERTY))) {
+			try {
+				return direct ();
+			} catch (LinkageError e) {
+				Utils.log ("Direct Secur32 binding is unavailable: " + e);
+			}
+		}
+		return mapped ();
+	}
+
+	private static class Holder {
+		static final Secur32Binding INSTANCE = select ();
+	}
+
+	/**Interface-mapped binding, through {@link Utils.Secur32}.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Mapped extends Secur32Binding {
+		static final Mapped INSTANCE = new Mapped ();
+
+		public String getName () { return "mapped"; }
+
+		public int initializeSecurityContext (CredHandle credential, CtxtHandle context, String targetName,
+		                                      int contextReq, SecBufferDesc input, CtxtHandle newContext,
+		                                      SecBufferDesc output, int attributes[], TimeStamp expiry) {
+			NativeLongByReference flags = new NativeLongByReference (new NativeLong (0));
+			int result = Utils.Secur32.INSTANCE.InitializeSecurityContext (
+				credential, context, targetName, new NativeLong (contextReq),
+				new NativeLong (0), new NativeLong (SECURITY_NATIVE_DREP),
+				input, new NativeLong (0), newContext, output, flags, expiry
+			);
+			attributes[0] = flags.getValue ().intValue ();
+			return result;
+		}
+
+		public int completeAuthToken (CtxtHandle context, SecBufferDesc token) {
+			return Utils.Secur32.INSTANCE.CompleteAuthToken (context, token);
+		}
+
+		public int makeSignature (CtxtHandle context, int qop, SecBufferDesc message, int sequence) {
+			return Utils.Secur32.INSTANCE.MakeSignature (context, new NativeLong (qop), message, new NativeLong (sequence));
+		}
+	}
+
+	/**Direct-mapped binding, with primitive signatures.
+	 *
+	 * <p>Structures are passed by pointer, so they are written before and read after
+	 * each call explicitly, rather than by the JNA proxy.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	static class Direct extends Secur32Binding {
+		static final Direct INSTANCE;
+
+		static {
+			Map<String, Object> options = new HashMap<String, Object> ();
+			options.put (Library.OPTION_CALLING_CONVENTION, Integer.valueOf (StdCallLibrary.STDCALL_CONVENTION));
+			options.put (Library.OPTION_FUNCTION_MAPPER, StdCallLibrary.FUNCTION_MAPPER);
+			Native.register (NativeLibrary.getInstance ("Secur32", options));
+			INSTANCE = new Direct ();
+		}
+
+		private static native int InitializeSecurityContextW (Pointer phCredential, Pointer phContext,
+				WString pszTargetName, int fContextReq, int reserved1, int targetDataRep,
+				Pointer pInput, int reserved2, Pointer phNewContext, Pointer pOutput,
+				int pfContextAttr[], Pointer ptsExpiry);
+
+		private static native int CompleteAuthToken (Pointer phContext, Pointer pToken);
+
+		private static native int MakeSignature (Pointer phContext, int fQOP, Pointer pMessage, int messageSeqNo);
+
+		public String getName () { return "direct"; }
+
+		public int initializeSecurityContext (CredHandle credential, CtxtHandle context, String targetName,
+		                                      int contextReq, SecBufferDesc input, CtxtHandle newContext,
+		                                      SecBufferDesc output, int attributes[], TimeStamp expiry) {
+			credential.write ();
+			if (context != null)
+				context.write ();
+			if (input != null)
+				input.write ();
+			output.write ();
+			try {
+				return InitializeSecurityContextW (
+					credential.getPointer (), context==null ? null : context.getPointer (),
+					targetName==null ? null : new WString (targetName), contextReq, 0, SECURITY_NATIVE_DREP,
+					input==null ? null : input.getPointer (), 0, newContext.getPointer (), output.getPointer (),
+					attributes, expiry.getPointer ()
+				);
+			}
+			finally {
+				newContext.read ();
+				output.read ();
+				expiry.read ();
+			}
+		}
+
+		public int completeAuthToken (CtxtHandle context, SecBufferDesc token) {
+			context.write ();
+			token.write ();
+			try { return CompleteAuthToken (context.getPointer (), token.getPointer ()); }
+			finally { token.read (); }
+		}
+
+		public int makeSignature (CtxtHandle context, int qop, SecBufferDesc message, int sequence) {
+			context.write ();
+			message.write ();
+			try { return MakeSignature (context.getPointer (), qop, message.getPointer (), sequence); }
+			finally { message.read (); }
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import static com.sun.jna.platform.win32.Sspi.ISC_REQ_CONFIDENTIALITY;
+import static com.sun.jna.platform.win32.Sspi.ISC_REQ_DELEGATE;
+import static com.sun.jna.platform.win32.Sspi.ISC_REQ_INTEGRITY;
+import static com.sun.jna.platform.win32.Sspi.ISC_REQ_MUTUAL_AUTH;
+import static com.sun.jna.platform.win32.Sspi.ISC_REQ_REPLAY_DETECT;
+import static com.sun.jna.platform.win32.Sspi.ISC_REQ_SEQUENCE_DETECT;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_BUFFER_TOO_SMALL;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_INVALID_HANDLE;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_INVALID_TOKEN;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_OK;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_OUT_OF_SEQUENCE;
+import static com.sun.jna.platform.win32.W32Errors.SEC_E_SECPKG_NOT_FOUND;
+import static com.sun.jna.platform.win32.W32Errors.SEC_I_COMPLETE_AND_CONTINUE;
+import static com.sun.jna.platform.win32.W32Errors.SEC_I_COMPLETE_NEEDED;
+import static com.sun.jna.platform.win32.W32Errors.SEC_I_CONTINUE_NEEDED;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.platform.win32.Sspi.CredHandle;
+import com.sun.jna.platform.win32.Sspi.CtxtHandle;
+import com.sun.jna.platform.win32.Sspi.SecBuffer;
+import com.sun.jna.platform.win32.Sspi.SecHandle;
+import com.sun.jna.platform.win32.Sspi.TimeStamp;
+import name.khoobyar.joe.jsch.sspi.Utils.SecBufferDesc;
+
+/**Deterministic, in-process simulation of the Kerberos security package.
+ *
+ * <p>No KDC or SSH server is involved: the first leg of a handshake produces an
+ * opaque token of {@link #getTokenSize()} bytes, every later leg accepts any non-empty
+ * input token, and MICs are keyed digests of the message.  Each call can be given
+ * a fixed latency and can be made to fail with a chosen SSPI result code, so that the
+ * overhead of the library itself can be measured, and its error handling exercised,
+ * on any platform.
+ *
+ * @author Joe Khoobyar
+ */
+public class SimulatedBackend
+	extends SSPIBackend
+{
+	/** The simulated calls, whose latency and failures can be configured. */
+	public enum Call {
+		ACQUIRE_CREDENTIALS, FREE_CREDENTIALS, INITIALIZE_CONTEXT, COMPLETE_TOKEN,
+		MAKE_SIGNATURE, DELETE_CONTEXT, QUERY_ATTRIBUTES, VERIFY_SIGNATURE
+	}
+
+	/** Length of a simulated MIC token (as for RFC 4121 with HMAC-SHA1-96). */
+	public static final int SIGNATURE_SIZE = 28;
+
+	private static final int SUPPORTED_FLAGS = ISC_REQ_DELEGATE | ISC_REQ_MUTUAL_AUTH | ISC_REQ_REPLAY_DETECT
+	                                         | ISC_REQ_SEQUENCE_DETECT | ISC_REQ_CONFIDENTIALITY | ISC_REQ_INTEGRITY;
+
+	private static final Pointer TAG = new Pointer (0x53494dL);
+
+	private final AtomicLong handles = new AtomicLong ();
+	private final ConcurrentMap<Long, Boolean> credentials = new ConcurrentHashMap<Long, Boolean> ();
+	private final ConcurrentMap<Long, Context> contexts = new ConcurrentHashMap<Long, Context> ();
+	private final AtomicLongArray calls = new AtomicLongArray (Call.values ().length);
+	private final AtomicLongArray latencies = new AtomicLongArray (Call.values ().length);
+	private final int failures[] = new int[Call.values ().length];
+	private final int failureIntervals[] = new int[Call.values ().length];
+
+	private volatile String principal = System.getProperty ("user.name") + "@EXAMPLE.COM";
+	private volatile long logonSessionId = 1;
+	private volatile int legs = 2;
+	private volatile boolean completeNeeded;
+	private volatile int tokenSize = 1200;
+	private volatile int maxToken = 48000;
+	private volatile long credentialLifetime = 36000000L;
+	private volatile long contextLifetime = 36000000L;
+
+	public String getName () { return "simulated"; }
+
+	public boolean isSupported () { return true; }
+
+	/** Sets the latency of every future <tt>call</tt>. */
+	public void setLatency (Call call, long latency, TimeUnit unit) {
+		latencies.set (call.ordinal (), unit.toNanos (latency));
+	}
+
+	/** Makes every <tt>interval</tt>-th <tt>call</tt> (counting from now) fail with <tt>result</tt>,
+	 *  or stops failing if <tt>result</tt> is <tt>SEC_E_OK</tt>.
+	 */
+	public synchronized void setFailure (Call call, int result, int interval) {
+		calls.set (call.ordinal (), 0);
+		failureIntervals[call.ordinal ()] = Math.max (interval, 1);
+		failures[call.ordinal ()] = result;
+	}
+
+	/** Makes every future <tt>call</tt> fail with <tt>result</tt>. */
+	public void setFailure (Call call, int result) {
+		setFailure (call, result, 1);
+	}
+
+	/** Stops every configured failure and latency. */
+	public synchronized void reset () {
+		for (Call call : Call.values ()) {
+			failures[call.ordinal ()] = SEC_E_OK;
+			latencies.set (call.ordinal (), 0);
+		}
+	}
+
+	/** @return how many times <tt>call</tt> was made (since its failure was last configured). */
+	public long getCallCount (Call call) { return calls.get (call.ordinal ()); }
+
+	/** @return the number of credentials handles that have not been freed. */
+	public int getLiveCredentials () { return credentials.size (); }
+
+	/** @return the number of contexts that have not been deleted. */
+	public int getLiveContexts () { return contexts.size (); }
+
+	public String getPrincipal () { return principal; }
+	public void setPrincipal (String principal) { this.principal = principal; }
+
+	/** Simulates a change of logon session. */
+	public void setLogonSessionId (long logonSessionId) { this.logonSessionId = logonSessionId; }
+
+	/** @return the number of <tt>InitializeSecurityContext</tt> calls needed to establish a context. */
+	public int getLegs () { return legs; }
+	public void setLegs (int legs) { this.legs = Math.max (legs, 1); }
+
+	/** @return <tt>true</tt> if tokens must be completed with <tt>CompleteAuthToken</tt>. */
+	public boolean isCompleteNeeded () { return completeNeeded; }
+	public void setCompleteNeeded (boolean completeNeeded) { this.completeNeeded = completeNeeded; }
+
+	/** @return the size of the token produced by the first leg. */
+	public int getTokenSize () { return tokenSize; }
+	public void setTokenSize (int tokenSize) { this.tokenSize = tokenSize; }
+
+	public int getMaxToken () { return maxToken; }
+	public void setMaxToken (int maxToken) { this.maxToken = maxToken; }
+
+	public long getCredentialLifetime () { return credentialLifetime; }
+	public void setCredentialLifetime (long credentialLifetime) { this.credentialLifetime = credentialLifetime; }
+
+	public long getContextLifetime () { return contextLifetime; }
+	public void setContextLifetime (long contextLifetime) { this.contextLifetime = contextLifetime; }
+
+	protected KerberosPackage probePackage (String packageName) {
+		if (! KerberosPackage.NAME.equalsIgnoreCase (packageName))
+			return KerberosPackage.unavailable (SEC_E_SECPKG_NOT_FOUND);
+		return new KerberosPackage (SEC_E_OK, 0x2083BB3, (short) 1, (short) 16, maxToken, "Simulated Kerberos");
+	}
+
+	public long getLogonSessionId () {
+		return logonSessionId;
+	}
+
+	public String getUserPrincipalName () {
+		return principal;
+	}
+
+	public int acquireCredentialsHandle (String packageName, CredHandle credential, TimeStamp expiry) {
+		int result = simulate (Call.ACQUIRE_CREDENTIALS);
+		if (result != SEC_E_OK)
+			return result;
+		if (! KerberosPackage.NAME.equalsIgnoreCase (packageName))
+			return SEC_E_SECPKG_NOT_FOUND;
+		long id = handles.incrementAndGet ();
+		credentials.put (id, Boolean.TRUE);
+		setHandle (credential, id);
+		Utils.toTimeStamp (System.currentTimeMillis () + credentialLifetime, expiry);
+		return SEC_E_OK;
+	}
+
+	public int freeCredentialsHandle (CredHandle credential) {
+		int result = simulate (Call.FREE_CREDENTIALS);
+		if (result != SEC_E_OK)
+			return result;
+		return credentials.remove (getHandle (credential)) != null ? SEC_E_OK : SEC_E_INVALID_HANDLE;
+	}
+
+	public int initializeSecurityContext (CredHandle credential, CtxtHandle context, String targetName,
+	                                      int contextReq, SecBufferDesc input, CtxtHandle newContext,
+	                                      SecBufferDesc output, int attributes[], TimeStamp expiry) {
+		int result = simulate (Call.INITIALIZE_CONTEXT);
+		if (result != SEC_E_OK)
+			return result;
+		if (! credentials.containsKey (getHandle (credential)))
+			return SEC_E_INVALID_HANDLE;
+
+		// Find or start the context.
+		Context ctx;
+		if (context == null || context.isNull ()) {
+			ctx = new Context (handles.incrementAndGet (), targetName, contextReq & SUPPORTED_FLAGS);
+			contexts.put (ctx.id, ctx);
+		} else if ((ctx = contexts.get (getHandle (context))) == null) {
+			return SEC_E_INVALID_HANDLE;
+		} else if (ctx.leg >= legs) {
+			return SEC_E_OUT_OF_SEQUENCE;
+		} else if (input == null || input.getBuffer (0).cbBuffer.intValue () <= 0) {
+			return SEC_E_INVALID_TOKEN;
+		}
+
+		// Produce the output token: the first leg sends an opaque request, later legs send nothing.
+		SecBuffer buffer = output.getBuffer (0);
+		int length = ctx.leg == 0 ? tokenSize : 0;
+		if (buffer.cbBuffer.intValue () < length)
+			return SEC_E_BUFFER_TOO_SMALL;
+		if (length > 0)
+			buffer.pvBuffer.write (0, ctx.token (length), 0, length);
+		buffer.cbBuffer = new NativeLong (length);
+		output.write ();
+
+		ctx.leg++;
+		ctx.expiry = System.currentTimeMillis () + contextLifetime;
+		setHandle (newContext, ctx.id);
+		attributes[0] = ctx.flags;
+		Utils.toTimeStamp (ctx.expiry, expiry);
+		if (ctx.leg < legs)
+			return completeNeeded ? SEC_I_COMPLETE_AND_CONTINUE : SEC_I_CONTINUE_NEEDED;
+		return completeNeeded ? SEC_I_COMPLETE_NEEDED : SEC_E_OK;
+	}
+
+	public int completeAuthToken (CtxtHandle context, SecBufferDesc token) {
+		int result = simulate (Call.COMPLETE_TOKEN);
+		if (result != SEC_E_OK)
+			return result;
+		return contexts.containsKey (getHandle (context)) ? SEC_E_OK : SEC_E_INVALID_HANDLE;
+	}
+
+	public int makeSignature (CtxtHandle context, int qop, SecBufferDesc message, int sequence) {
+		int result = simulate (Call.MAKE_SIGNATURE);
+		if (result != SEC_E_OK)
+			return result;
+		Context ctx = contexts.get (getHandle (context));
+		if (ctx == null)
+			return SEC_E_INVALID_HANDLE;
+		if (ctx.leg < legs)
+			return SEC_E_OUT_OF_SEQUENCE;
+
+		SecBuffer data = message.getBuffer (0), token = message.getBuffer (1);
+		if (token.cbBuffer.intValue () < SIGNATURE_SIZE)
+			return SEC_E_BUFFER_TOO_SMALL;
+		byte mic[] = ctx.sign (data.pvBuffer, data.cbBuffer.intValue ());
+		token.pvBuffer.write (0, mic, 0, mic.length);
+		token.cbBuffer = new NativeLong (mic.length);
+		message.write ();
+		return SEC_E_OK;
+	}
+
+	/** Accepts a MIC made by {@link #makeSignature} over the same message with the same context. */
+	public int verifySignature (CtxtHandle context, SecBufferDesc message, int sequence, int qop[]) {
+		int result = simulate (Call.VERIFY_SIGNATURE);
+		if (result != SEC_E_OK)
+			return result;
+		Context ctx = contexts.get (getHandle (context));
+		if (ctx == null)
+			return SEC_E_INVALID_HANDLE;
+		if (ctx.leg < legs)
+			return SEC_E_OUT_OF_SEQUENCE;
+
+		SecBuffer data = message.getBuffer (0), token = message.getBuffer (1);
+		if (token.cbBuffer.intValue () != SIGNATURE_SIZE)
+			return SEC_E_INVALID_TOKEN;
+		qop[0] = 0;
+		return ctx.verify (data.pvBuffer, data.cbBuffer.intValue (), token.pvBuffer.getByteArray (0, SIGNATURE_SIZE))
+			? SEC_E_OK : SEC_E_MESSAGE_ALTERED;
+	}
+
+	public int deleteSecurityContext (CtxtHandle context) {
+		int result = simulate (Call.DELETE_CONTEXT);
+		if (result != SEC_E_OK)
+			return result;
+		return contexts.remove (getHandle (context)) != null ? SEC_E_OK : SEC_E_INVALID_HANDLE;
+	}
+
+	public ContextAttributes queryContextAttributes (CtxtHandle context, int flags, TimeStamp expiry) {
+		simulate (Call.QUERY_ATTRIBUTES);
+		Context ctx = contexts.get (getHandle (context));
+		return new ContextAttributes (
+			flags, Utils.toMillis (expiry), maxToken, SIGNATURE_SIZE, 1, 60,
+			principal, principal, ctx == null ? null : ctx.target
+		);
+	}
+
+	private int simulate (Call call) {
+		int c = call.ordinal ();
+		long count = calls.incrementAndGet (c);
+		delay (latencies.get (c));
+		int failure, interval;
+		synchronized (this) {
+			failure = failures[c];
+			interval = failureIntervals[c];
+		}
+		if (failure != SEC_E_OK && count % interval == 0)
+			return failure;
+		return SEC_E_OK;
+	}
+
+	private static void delay (long nanos) {
+		if (nanos <= 0)
+			return;
+		long deadline = System.nanoTime () + nanos;
+		for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime ()) {
+			if (remaining > 100000L)
+				LockSupport.parkNanos (remaining);
+			else
+				Thread.yield ();
+		}
+	}
+
+	private static void setHandle (SecHandle handle, long id) {
+		handle.dwLower = new Pointer (id);
+		handle.dwUpper = TAG;
+	}
+
+	private static long getHandle (SecHandle handle) {
+		if (handle == null || handle.dwLower == null || ! TAG.equals (handle.dwUpper))
+			return 0;
+		return Pointer.nativeValue (handle.dwLower);
+	}
+
+	/**A simulated security context.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	private static class Context {
+		final long id;
+		final String target;
+		final int flags;
+		final byte key[];
+		int leg;
+		long sequence;
+		volatile long expiry;
+
+		Context (long id, String target, int flags) {
+			this.id = id;
+			this.target = target;
+			this.flags = flags;
+			this.key = digest (null, 0, (target + "#" + id).getBytes ());
+		}
+
+		/** @return a deterministic token, derived from the session key. */
+		byte[] token (int length) {
+			byte token[] = new byte[length];
+			token[0] = 0x60;
+			for (int i = 1; i < length; i++)
+				token[i] = (byte) (key[i % key.length] ^ i);
+			return token;
+		}
+
+		/** @return an RFC 4121 style MIC token: a 16 byte header and a 12 byte keyed checksum. */
+		synchronized byte[] sign (Pointer data, int length) {
+			byte mic[] = new byte[SIGNATURE_SIZE];
+			long seq = sequence++;
+			mic[0] = 0x04; mic[1] = 0x04;
+			for (int i = 3; i < 8; i++)
+				mic[i] = (byte) 0xff;
+			for (int i = 0; i < 8; i++)
+				mic[8 + i] = (byte) (seq >>> (56 - 8 * i));
+			byte checksum[] = digest (key, seq, data==null || length<=0 ? new byte[0] : data.getByteArray (0, length));
+			System.arraycopy (checksum, 0, mic, 16, SIGNATURE_SIZE - 16);
+			return mic;
+		}
+
+		/** @return <tt>true</tt> if <tt>mic</tt> was made by {@link #sign} over the same data. */
+		boolean verify (Pointer data, int length, byte mic[]) {
+			long seq = 0;
+			for (int i = 0; i < 8; i++)
+				seq = (seq << 8) | (mic[8 + i] & 0xff);
+			byte checksum[] = digest (key, seq, data==null || length<=0 ? new byte[0] : data.getByteArray (0, length));
+			for (int i = 16; i < SIGNATURE_SIZE; i++)
+				if (mic[i] != checksum[i - 16])
+					return false;
+			return true;
+		}
+
+		static byte[] digest (byte key[], long seq, byte data[]) {
+			try {
+				MessageDigest sha1 = MessageDigest.getInstance ("SHA-1");
+				if (key != null)
+					sha1.update (key);
+				for (int i = 0; i < 8; i++)
+					sha1.update ((byte) (seq >>> (56 - 8 * i)));
+				sha1.update (data);
+				return sha1.digest ();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException (e);
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+
+/**Bounded, striped pool of native buffers for security tokens and signatures.
+ *
+ * <p>Every buffer in the pool is {@link #getBufferSize()} bytes long, which by default
+ * is the maximum token size of the Kerberos package.  Each thread starts looking for
+ * a free buffer at its own stripe, so that threads rarely contend for the same slot.
+ * Requests for larger buffers are served with one-off allocations that are never pooled.
+ *
+ * <p>Buffers are plain pointers to native memory, not finalizable <tt>Memory</tt>.
+ * Buffers that are not pooled again are freed as soon as they are returned; a buffer
+ * that is garbage collected without being returned is freed by the {@link HandleCleaner}
+ * and counted as leaked.
+ *
+ * @author Joe Khoobyar
+ */
+public class TokenBufferPool {
+
+	/** Default number of pooled buffers. */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	/** How many slots are probed when borrowing or returning a buffer. */
+	private static final int PROBES = 4;
+
+	private final int bufferSize;
+	private final AtomicReferenceArray<Buffer> slots;
+	private final AtomicLong hits = new AtomicLong ();
+	private final AtomicLong misses = new AtomicLong ();
+	private final AtomicLong discards = new AtomicLong ();
+	private final AtomicLong live = new AtomicLong ();
+	private final AtomicLong peak = new AtomicLong ();
+	private final AtomicLong leaked = new AtomicLong ();
+
+	public TokenBufferPool (int bufferSize, int capacity) {
+		if (bufferSize <= 0 || capacity <= 0)
+			throw new IllegalArgumentException ("bufferSize and capacity must be positive");
+		this.bufferSize = bufferSize;
+		this.slots = new AtomicReferenceArray<Buffer> (capacity);
+	}
+
+	/** @return the pool used by {@link GSSContextSSPI}, sized from the Kerberos package limits. */
+	public static TokenBufferPool getDefault () {
+		return Holder.INSTANCE;
+	}
+
+	/** Borrows a buffer of at least <tt>size</tt> bytes.  Return it with {@link #release(Pointer, int)}. */
+	public Pointer borrow (int size) {
+		if (size <= bufferSize) {
+			int capacity = slots.length ();
+			int start = stripe ();
+			for (int i = 0; i < PROBES && i < capacity; i++) {
+				int slot = (start + i) % capacity;
+				Buffer buffer = slots.get (slot);
+				if (buffer != null && slots.compareAndSet (slot, buffer, null)) {
+					hits.incrementAndGet ();
+					return buffer;
+				}
+			}
+			size = bufferSize;
+		}
+		misses.incrementAndGet ();
+		long count = live.incrementAndGet ();
+		for (long p; count > (p = peak.get ()) && ! peak.compareAndSet (p, count); )
+			;
+		return new Buffer (size);
+	}
+
+	/** Returns a borrowed buffer to the pool, after clearing the first <tt>used</tt> bytes. */
+	public void release (Pointer pointer, int used) {
+		if (pointer == null)
+			return;
+		if (! (pointer instanceof Buffer)) {
+			discards.incrementAndGet ();
+			return;
+		}
+		Buffer buffer = (Buffer) pointer;
+		if (buffer.size == bufferSize) {
+			if (used > 0)
+				buffer.setMemory (0, Math.min (used, bufferSize), (byte) 0);
+			int capacity = slots.length ();
+			int start = stripe ();
+			for (int i = 0; i < PROBES && i < capacity; i++)
+				if (slots.compareAndSet ((start + i) % capacity, null, buffer))
+					return;
+		}
+		discards.incrementAndGet ();
+		buffer.free ();
+	}
+
+	public int getBufferSize () { return bufferSize; }
+
+	public int getCapacity () { return slots.length (); }
+
+	/** @return the number of borrows that were served from the pool. */
+	public long getHits () { return hits.get (); }
+
+	/** @return the number of borrows that needed a new allocation. */
+	public long getMisses () { return misses.get (); }
+
+	/** @return the number of returned buffers that were freed instead of pooled. */
+	public long getDiscards () { return discards.get (); }
+
+	/** @return the number of buffers that were allocated and not yet freed. */
+	public long getLive () { return live.get (); }
+
+	/** @return the most buffers that were ever allocated at once. */
+	public long getPeak () { return peak.get (); }
+
+	/** @return the number of buffers that were garbage collected while still borrowed. */
+	public long getLeaked () { return leaked.get (); }
+
+	public String toString () {
+		return "TokenBufferPool[size=" + bufferSize + ", capacity=" + slots.length ()
+			+ ", hits=" + hits.get () + ", misses=" + misses.get () + ", discards=" + discards.get ()
+			+ ", live=" + live.get () + ", leaked=" + leaked.get () + "]";
+	}
+
+	private int stripe () {
+		long id = Thread.currentThread ().getId ();
+		return (int) ((id ^ (id >>> 16)) & 0x7FFFFFFF) % slots.length ();
+	}
+
+	/**Pointer to native memory that is freed when it is discarded, or else by the {@link HandleCleaner}.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	private class Buffer extends Pointer {
+		final long size;
+		private final Release release;
+		private final HandleCleaner.Cleanable cleanable;
+
+		Buffer (long size) {
+			super (Allocator.allocate (size));
+			this.size = size;
+			this.release = new Release (peer);
+			this.cleanable = HandleCleaner.getDefault ().register (this, "token buffer", release);
+		}
+
+		/** Frees the native memory now.  The buffer must not be used afterwards. */
+		void free () {
+			release.returned = true;
+			cleanable.clean ();
+			peer = 0;
+		}
+	}
+
+	/**Frees the memory of a {@link Buffer}, counting it as leaked unless it was returned.
+	 * It must not refer to the buffer, so that the buffer can become unreachable.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	private class Release implements Runnable {
+		private final long peer;
+		volatile boolean returned;
+
+		Release (long peer) {
+			this.peer = peer;
+		}
+
+		public void run () {
+			if (! returned)
+				leaked.incrementAndGet ();
+			live.decrementAndGet ();
+			Allocator.release (peer);
+		}
+	}
+
+	/**Reaches the native allocator of JNA without creating any finalizable <tt>Memory</tt>.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	private static class Allocator extends Memory {
+		private Allocator () {
+		}
+
+		static long allocate (long size) {
+			long peer = malloc (size);
+			if (peer == 0)
+				throw new OutOfMemoryError ("Cannot allocate " + size + " bytes of native memory");
+			return peer;
+		}
+
+		static void release (long peer) {
+			free (peer);
+		}
+	}
+
+	private static class Holder {
+		static final TokenBufferPool INSTANCE = new TokenBufferPool (KerberosPackage.getInstance ().getMaxToken (), DEFAULT_CAPACITY);
+	}
+}
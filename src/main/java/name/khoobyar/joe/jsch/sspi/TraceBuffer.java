@@ -0,0 +1,155 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import name.khoobyar.joe.jsch.sspi.SSPIMetrics.Phase;
+
+/**Lock-free ring buffer of the most recent SSPI events.
+ *
+ * <p>Events are stored in preallocated primitive arrays, so recording one allocates
+ * nothing and takes no lock.  Each slot carries a sequence number that is cleared while
+ * the slot is written, so {@link #snapshot()} can skip slots that are overwritten while
+ * it reads them.  The capacity is rounded up to a power of two; the default buffer holds
+ * the number of events given by the <tt>name.khoobyar.joe.jsch.sspi.trace</tt> system
+ * property (256 by default, or none if it is <tt>0</tt>).
+ *
+ * @author Joe Khoobyar
+ */
+public class TraceBuffer {
+
+	public static final String SIZE_PROPERTY = "name.khoobyar.joe.jsch.sspi.trace";
+	public static final int DEFAULT_SIZE = 256;
+
+	private static final Phase phases[] = Phase.values ();
+
+	private final int mask;
+	private final AtomicLong next = new AtomicLong ();
+	private final AtomicLongArray sequences;
+	private final long times[];
+	private final long nanos[];
+	private final long threads[];
+	private final int events[];
+	private final int legs[];
+	private final int results[];
+
+	public TraceBuffer (int size) {
+		int capacity = Integer.highestOneBit (Math.max (size, 1));
+		if (capacity < size)
+			capacity <<= 1;
+		this.mask = capacity - 1;
+		this.sequences = new AtomicLongArray (capacity);
+		this.times = new long[capacity];
+		this.nanos = new long[capacity];
+		this.threads = new long[capacity];
+		this.events = new int[capacity];
+		this.legs = new int[capacity];
+		this.results = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			sequences.set (i, -1L);
+	}
+
+	/** @return the buffer that {@link Utils#event(Phase, int, int, long)} records into,
+	 *          or <tt>null</tt> if tracing is disabled.
+	 */
+	public static TraceBuffer getDefault () {
+		return Holder.INSTANCE;
+	}
+
+	public int getCapacity () {
+		return mask + 1;
+	}
+
+	/** Records an event. */
+	public void record (Phase phase, int leg, int result, long duration) {
+		long sequence = next.getAndIncrement ();
+		int slot = (int) sequence & mask;
+		sequences.set (slot, -1L);
+		times[slot] = System.currentTimeMillis ();
+		nanos[slot] = duration;
+		threads[slot] = Thread.currentThread ().getId ();
+		events[slot] = phase.ordinal ();
+		legs[slot] = leg;
+		results[slot] = result;
+		sequences.set (slot, sequence);
+	}
+
+	/** @return the events still in the buffer, oldest first. */
+	public List<Event> snapshot () {
+		long end = next.get ();
+		long start = Math.max (0, end - mask - 1);
+		List<Event> list = new ArrayList<Event> ((int) (end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			int slot = (int) sequence & mask;
+			if (sequences.get (slot) != sequence)
+				continue;
+			Event event = new Event (times[slot], threads[slot], phases[events[slot]], legs[slot], results[slot], nanos[slot]);
+			if (sequences.get (slot) == sequence)
+				list.add (event);
+		}
+		return list;
+	}
+
+	/** Forgets every event. */
+	public void clear () {
+		for (int i = 0; i <= mask; i++)
+			sequences.set (i, -1L);
+	}
+
+	/**A recorded event.
+	 *
+	 * @author Joe Khoobyar
+	 */
+	public static class Event {
+		private final long time;
+		private final long thread;
+		private final Phase phase;
+		private final int leg;
+		private final int result;
+		private final long nanos;
+
+		Event (long time, long thread, Phase phase, int leg, int result, long nanos) {
+			this.time = time;
+			this.thread = thread;
+			this.phase = phase;
+			this.leg = leg;
+			this.result = result;
+			this.nanos = nanos;
+		}
+
+		/** @return when the event was recorded, in milliseconds since the epoch. */
+		public long getTime () { return time; }
+		public long getThreadId () { return thread; }
+		public Phase getPhase () { return phase; }
+		public int getLeg () { return leg; }
+		public int getResult () { return result; }
+
+		/** @return how long the call took (in nanoseconds), or <tt>0</tt> if it was not timed. */
+		public long getNanos () { return nanos; }
+
+		public String toString () {
+			StringBuilder sb = new StringBuilder ();
+			sb.append (time).append (" [").append (thread).append ("] ").append (phase);
+			if (leg > 0)
+				sb.append ('[').append (leg).append (']');
+			sb.append (" result=0x").append (Integer.toHexString (result));
+			if (nanos > 0)
+				sb.append (' ').append (nanos / 1000).append ("us");
+			return sb.toString ();
+		}
+	}
+
+	private static class Holder {
+		static final TraceBuffer INSTANCE;
+
+		static {
+			int size = Integer.getInteger (SIZE_PROPERTY, DEFAULT_SIZE).intValue ();
+			INSTANCE = size > 0 ? new TraceBuffer (size) : null;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2008-2012 Joe Khoobyar.
+ */
+package name.khoobyar.joe.jsch.sspi;
+
+import com.jcraft.jsch.Buffer;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.UserAuth;
+
+/**The <tt>gssapi-keyex</tt> user authentication method (RFC 4462).
+ *
+ * <p>Signs the session id with the context that a {@link GSSKeyExchange} established,
+ * so the user is authenticated in a single round trip.  Sessions that were not keyed
+ * through GSS-API skip this method.
+ *
+ * @author Joe Khoobyar
+ */
+public class UserAuthGSSAPIKeyex
+	extends UserAuth
+{
+	public static final String METHOD = "gssapi-keyex";
+
+	public boolean start (Session session) throws Exception {
+		super.start (session);
+
+		GSSKeyExchange.Exchange exchange = GSSKeyExchange.take (session);
+		if (exchange == null)
+			return false;
+
+		byte user[] = username.getBytes ("UTF-8");
+		byte service[] = "ssh-connection".getBytes ("UTF-8");
+		byte method[] = METHOD.getBytes ("UTF-8");
+		try {
+			Buffer mbuf = new Buffer ();
+			mbuf.putString (exchange.sessionId);
+			mbuf.putByte ((byte) SSH_MSG_USERAUTH_REQUEST);
+			mbuf.putString (user);
+			mbuf.putString (service);
+			mbuf.putString (method);
+			byte foo[] = new byte[mbuf.getLength ()];
+			mbuf.getByte (foo);
+			byte mic[] = exchange.context.getMIC (foo, 0, foo.length);
+
+			packet.reset ();
+			buf.putByte ((byte) SSH_MSG_USERAUTH_REQUEST);
+			buf.putString (user);
+			buf.putString (service);
+			buf.putString (method);
+			buf.putString (mic);
+			session.write (packet);
+		}
+		finally {
+			exchange.context.dispose ();
+		}
+
+		for (;;) {
+			buf = session.read (buf);
+			buf.getInt ();
+			buf.getByte ();
+			int command = buf.getByte ();
+			if (command == SSH_MSG_USERAUTH_SUCCESS)
+				return true;
+			if (command == SSH_MSG_USERAUTH_BANNER) {
+				byte message[] = buf.getString ();
+				buf.getString ();
+				if (userinfo != null)
+					userinfo.showMessage (new String (message, "UTF-8"));
+				continue;
+			}
+			return false;
+		}
+	}
+}
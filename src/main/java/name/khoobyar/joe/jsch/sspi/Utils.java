@@ -8,40 +8,68 @@ import static com.sun.jna.platform.win32.Sspi.SECBUFFER_EMPTY;
 import static com.sun.jna.platform.win32.Sspi.SECBUFFER_TOKEN;
 import static com.sun.jna.platform.win32.Sspi.SECBUFFER_VERSION;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TimeZone;
+
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Logger;
-import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
+import com.sun.jna.WString;
+import com.sun.jna.platform.win32.Advapi32;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinNT;
+import com.sun.jna.platform.win32.WinNT.HANDLEByReference;
+import com.sun.jna.platform.win32.WinNT.LUID;
 import com.sun.jna.platform.win32.Sspi.CtxtHandle;
 import com.sun.jna.platform.win32.Sspi.CredHandle;
 import com.sun.jna.platform.win32.Sspi.SecBuffer;
 import com.sun.jna.platform.win32.Sspi.TimeStamp;
+import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.NativeLongByReference;
+import com.sun.jna.ptr.PointerByReference;
 import com.sun.jna.win32.StdCallLibrary;
 import com.sun.jna.win32.W32APIOptions;
+import name.khoobyar.joe.jsch.sspi.SSPIMetrics.Phase;
 
 /**SSPI calls and structures.
  *
  * @author Joe Khoobyar
  */
 public class Utils {
-	private static Logger jschLogger;
+	private static volatile Logger jschLogger;
 
-	static {
-		jschLogger = null;
-	}
-	
+	/** Sets the logger used by every context that is not given its own. */
 	public static void setLogger (Logger logger) {
 		jschLogger = logger;
 	}
 
+	/** @return the logger used by every context that is not given its own, or <tt>null</tt>. */
+	public static Logger getLogger () {
+		return jschLogger;
+	}
+
+	/** @return <tt>true</tt> if a logger is set, and it accepts messages at <tt>level</tt>. */
+	public static boolean isLoggable (int level) {
+		return isLoggable (jschLogger, level);
+	}
+
+	/** @return <tt>true</tt> if <tt>logger</tt> is not <tt>null</tt>, and it accepts messages at <tt>level</tt>. */
+	public static boolean isLoggable (Logger logger, int level) {
+		return logger != null && logger.isEnabled (level);
+	}
+
 	public static void log (int level, String message) {
-		if (jschLogger != null)
-			jschLogger.log (level, "SSPI: " + message);
+		log (jschLogger, level, message);
+	}
+
+	public static void log (Logger logger, int level, String message) {
+		if (logger != null && logger.isEnabled (level))
+			logger.log (level, "SSPI: " + message);
 	}
 
 	public static void log (String message) {
@@ -71,118 +99,359 @@ public class Utils {
 		return sb.toString ();
 	}
 	
+	/** Logs a message along with an SSPI result code, if the logger accepts <tt>level</tt>.
+	 *  A successful result is not decoded, so that it costs nothing more when it is not logged.
+	 *  @return the decoded message, whether or not it was logged.
+	 */
 	public static String logAndDecode (int level, String message, int result) {
+		return logAndDecode (jschLogger, level, message, result);
+	}
+
+	public static String logAndDecode (Logger logger, int level, String message, int result) {
 		if (result != SEC_E_OK)
 			message = decodeResult (message, result);
-    	log (level, message);
-    	return message;
+		log (logger, level, message);
+		return message;
 	}
-	
+
 	public static String logAndDecode (String message, int result) {
 		return logAndDecode (result<0 ? Logger.ERROR : Logger.INFO, message, result);
 	}
-	
+
+	/** Records an SSPI call in the {@link TraceBuffer}, and logs it if the logger accepts it.
+	 *  Nothing is formatted unless the event is logged.
+	 *  @param leg    The leg of <tt>INITIALIZE_CONTEXT</tt> (starting at 1), or <tt>0</tt>.
+	 *  @param nanos  How long the call took, or <tt>0</tt> if it was not timed.
+	 */
+	public static void event (Phase phase, int leg, int result, long nanos) {
+		event (jschLogger, phase, leg, result, nanos);
+	}
+
+	public static void event (Logger logger, Phase phase, int leg, int result, long nanos) {
+		TraceBuffer trace = TraceBuffer.getDefault ();
+		if (trace != null)
+			trace.record (phase, leg, result, nanos);
+		int level = result < 0 ? Logger.ERROR : Logger.DEBUG;
+		if (isLoggable (logger, level)) {
+			StringBuilder sb = new StringBuilder ().append (phase);
+			if (leg > 0)
+				sb.append ('[').append (leg).append (']');
+			if (result != SEC_E_OK)
+				sb.append (" (result 0x").append (Integer.toHexString (result)).append (')');
+			if (nanos > 0)
+				sb.append (' ').append (nanos / 1000).append ("us");
+			log (logger, level, sb.toString ());
+		}
+	}
+
+	/** Logs the events in the {@link TraceBuffer}, oldest first, if the logger accepts <tt>level</tt>. */
+	public static void dumpTrace (int level) {
+		dumpTrace (jschLogger, level);
+	}
+
+	public static void dumpTrace (Logger logger, int level) {
+		TraceBuffer trace = TraceBuffer.getDefault ();
+		if (trace == null || ! isLoggable (logger, level))
+			return;
+		List<TraceBuffer.Event> events = trace.snapshot ();
+		log (logger, level, "Last " + events.size () + " SSPI events:");
+		for (TraceBuffer.Event event : events)
+			log (logger, level, "  " + event);
+	}
+
 	public static void assertUnchecked (int result, String message) throws RuntimeException {
-		message = logAndDecode (message, result);
-	    if (result != SEC_E_OK)
+		assertUnchecked (jschLogger, result, message);
+	}
+
+	public static void assertUnchecked (Logger logger, int result, String message) throws RuntimeException {
+		if (result != SEC_E_OK) {
+			message = decodeResult (message, result);
+			log (logger, Logger.ERROR, message);
 			throw new RuntimeException (message);
+		}
 	}
-	
+
 	public static void assertOk (int result, String message) throws JSchException {
-		message = logAndDecode (message, result);
-	    if (result != SEC_E_OK)
+		assertOk (jschLogger, result, message);
+	}
+
+	public static void assertOk (Logger logger, int result, String message) throws JSchException {
+		if (result != SEC_E_OK) {
+			message = decodeResult (message, result);
+			log (logger, Logger.ERROR, message);
 			throw new JSchException (message);
+		}
 	}
 	
+	/** @return a pointer to the position of a direct buffer. */
+	public static Pointer getDirectPointer (ByteBuffer buffer) {
+		return Native.getDirectBufferPointer (buffer).share (buffer.position ());
+	}
+
+	/** Copies the remaining bytes of a heap buffer into a buffer borrowed from <tt>pool</tt>, without moving its position. */
+	public static Pointer copyToNative (TokenBufferPool pool, ByteBuffer buffer) {
+		int length = buffer.remaining ();
+		Pointer memory = pool.borrow (length);
+		if (buffer.hasArray ()) {
+			memory.write (0, buffer.array (), buffer.arrayOffset () + buffer.position (), length);
+		} else {
+			byte data[] = new byte[length];
+			buffer.duplicate ().get (data);
+			memory.write (0, data, 0, length);
+		}
+		return memory;
+	}
+
+	/** Copies <tt>length</tt> bytes of native memory into a heap buffer, advancing its position. */
+	public static void copyFromNative (Pointer memory, int length, ByteBuffer buffer) {
+		if (buffer.hasArray ()) {
+			memory.read (0, buffer.array (), buffer.arrayOffset () + buffer.position (), length);
+			buffer.position (buffer.position () + length);
+		} else {
+			buffer.put (memory.getByteArray (0, length));
+		}
+	}
+
+	/** Number of 100ns intervals between 1601-01-01 and 1970-01-01. */
+	private static final long EPOCH_TICKS = 116444736000000000L;
+
+	/** Converts an SSPI <tt>TimeStamp</tt> (a local FILETIME) to milliseconds since the epoch.
+	 *  @return <tt>Long.MAX_VALUE</tt> if the time stamp is unset or never expires.
+	 */
+	public static long toMillis (TimeStamp stamp) {
+		if (stamp == null || stamp.dwLower == null || stamp.dwUpper == null)
+			return Long.MAX_VALUE;
+		long ticks = ((long) stamp.dwUpper.intValue () << 32) | (stamp.dwLower.intValue () & 0xFFFFFFFFL);
+		if (ticks <= EPOCH_TICKS || ticks == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+		long local = (ticks - EPOCH_TICKS) / 10000L;
+		return local - TimeZone.getDefault ().getOffset (local);
+	}
+
+	/** Stores milliseconds since the epoch in an SSPI <tt>TimeStamp</tt> (a local FILETIME).
+	 *  <tt>Long.MAX_VALUE</tt> is stored as a time stamp that never expires.
+	 */
+	public static void toTimeStamp (long millis, TimeStamp stamp) {
+		long ticks = Long.MAX_VALUE;
+		if (millis != Long.MAX_VALUE)
+			ticks = (millis + TimeZone.getDefault ().getOffset (millis)) * 10000L + EPOCH_TICKS;
+		stamp.dwLower = new NativeLong ((int) ticks);
+		stamp.dwUpper = new NativeLong ((int) (ticks >>> 32));
+	}
+
+	/** TokenStatistics (see MSDN for details) */
+	private static final int TokenStatistics = 10;
+
+	/** @return the logon session (authentication id) of the calling thread, or <tt>0</tt> if unknown. */
+	public static long getLogonSessionId () {
+		HANDLEByReference token = new HANDLEByReference ();
+		if (! Advapi32.INSTANCE.OpenThreadToken (Kernel32.INSTANCE.GetCurrentThread (), WinNT.TOKEN_QUERY, true, token)
+		 && ! Advapi32.INSTANCE.OpenProcessToken (Kernel32.INSTANCE.GetCurrentProcess (), WinNT.TOKEN_QUERY, token))
+			return 0;
+		try {
+			TOKEN_STATISTICS statistics = new TOKEN_STATISTICS ();
+			IntByReference length = new IntByReference ();
+			if (! Advapi32.INSTANCE.GetTokenInformation (token.getValue (), TokenStatistics, statistics, statistics.size (), length))
+				return 0;
+			return ((long) statistics.AuthenticationId.HighPart << 32) | (statistics.AuthenticationId.LowPart & 0xFFFFFFFFL);
+		}
+		finally {
+			Kernel32.INSTANCE.CloseHandle (token.getValue ());
+		}
+	}
+
+	/** Win32 API structure (see MSDN for details) */
+	public static class TOKEN_STATISTICS extends Structure {
+		public LUID TokenId;
+		public LUID AuthenticationId;
+		public long ExpirationTime;
+		public int TokenType;
+		public int ImpersonationLevel;
+		public int DynamicCharged;
+		public int DynamicAvailable;
+		public int GroupCount;
+		public int PrivilegeCount;
+		public LUID ModifiedId;
+	}
+
+	/**SSPI buffer descriptor (see MSDN for details).
+	 *
+	 * <p>Declared outside of {@link Secur32}, so that using it does not load <tt>Secur32.dll</tt>.
+	 */
+	public static class SecBufferDesc extends Structure {
+		
+		/** Version number. */
+	    public NativeLong ulVersion;
+	    
+	    /** Number of buffers. */
+	    public NativeLong cBuffers;
+	    
+	    /** Array of buffers. */
+	    public SecBuffer.ByReference pBuffer;
+	    
+	    /** Last used Java array. */
+	    private transient Object buffers[];
+	    
+	    /** Create a new SecBufferDesc. */
+	    public SecBufferDesc (SecBuffer.ByReference buffers[]) {
+	    	this.ulVersion = new NativeLong(SECBUFFER_VERSION);
+	    	this.cBuffers = new NativeLong(buffers.length);
+	    	this.pBuffer = buffers[0];
+	    	this.buffers = buffers;
+	    	allocateMemory ();
+	    }
+	    
+	    /** Create a new SecBufferDesc with one buffer. */
+	    public SecBufferDesc (SecBuffer.ByReference buffer) {
+	    	this ((SecBuffer.ByReference[]) buffer.toArray (1));
+	    }
+	    
+	    /** Create a new SecBufferDesc with one SECBUFFER_EMPTY buffer. */
+	    public SecBufferDesc () {
+	    	this (new SecBuffer.ByReference ());
+	    }
+	    
+	    /**
+	     * Create a new SecBufferDesc with initial data.
+	     * @param type    Token type.
+	     * @param token   Initial token data.
+	     */
+	    public SecBufferDesc (int type, byte[] token) {
+	    	this (new SecBuffer.ByReference(type, token));
+	    }
+	    
+	    /**
+	     * Create a new SecBufferDesc with one SecBuffer of a given type and size.
+	     * @param type
+	     * @param tokenSize
+	     */
+	    public SecBufferDesc (int type, int tokenSize) {
+	    	this (new SecBuffer.ByReference (type, tokenSize));
+	    }
+	    
+	    /**
+	     * Create a new SecBufferDesc with one SecBuffer of a given type, over existing memory.
+	     * @param type
+	     * @param memory
+	     * @param tokenSize
+	     */
+	    public SecBufferDesc (int type, Pointer memory, int tokenSize) {
+	    	this (newBuffer (type, memory, tokenSize));
+	    }
+	    
+	    private static SecBuffer.ByReference newBuffer (int type, Pointer memory, int tokenSize) {
+	    	SecBuffer.ByReference buffer = new SecBuffer.ByReference ();
+	    	buffer.BufferType = new NativeLong (type);
+	    	buffer.cbBuffer = new NativeLong (tokenSize);
+	    	buffer.pvBuffer = memory;
+	    	return buffer;
+	    }
+	    
+	    /**
+	     * Create a new SecBufferDesc with the given number of buffers.
+	     * @param type
+	     * @param tokenSize
+	     */
+	    public SecBufferDesc (int buffers) {
+	    	this ((SecBuffer.ByReference[]) new SecBuffer.ByReference().toArray (2));
+	    }
+	    
+	    private void syncArray () {
+    		if (buffers!=null && buffers[0] == pBuffer)
+				return;
+			buffers = pBuffer.toArray (cBuffers.intValue ());
+			pBuffer = (SecBuffer.ByReference) buffers[0];
+	    }
+	    
+	    /** Writes this descriptor and every buffer in it. */
+	    public void write () {
+	    	super.write ();
+	    	if (pBuffer != null && cBuffers != null && cBuffers.intValue () > 1) {
+	    		syncArray ();
+	    		for (int i = 1; i < buffers.length; i++)
+	    			((Structure) buffers[i]).write ();
+	    	}
+	    }
+	    
+	    /** Reads this descriptor and every buffer in it. */
+	    public void read () {
+	    	super.read ();
+	    	if (pBuffer != null && cBuffers != null && cBuffers.intValue () > 1) {
+	    		syncArray ();
+	    		for (int i = 1; i < buffers.length; i++)
+	    			((Structure) buffers[i]).read ();
+	    	}
+	    }
+	    
+	    public SecBuffer.ByReference getBuffer (int buffer) {
+	    	if (pBuffer == null || cBuffers == null)
+	    		throw new RuntimeException("pBuffers | cBuffers");
+	    	if (cBuffers.intValue () < buffer)
+		    	throw new RuntimeException("cBuffers < "+buffer);
+	    	syncArray ();
+    		return (SecBuffer.ByReference) buffers[buffer];
+	    }
+	    
+	    public byte[] getBytes(int buffer) {
+	    	SecBuffer.ByReference secBuffer = getBuffer (buffer);
+	    	return secBuffer.cbBuffer.intValue()==0 ? null : secBuffer.getBytes ();
+	    }
+	    
+	    public byte[] getBytes() {
+			return getBytes (0);
+		}
+	}
+
 	public interface Secur32 extends StdCallLibrary {
 		Secur32 INSTANCE = (Secur32) Native.loadLibrary ("Secur32", Secur32.class, W32APIOptions.UNICODE_OPTIONS);
 		
-		public static class SecBufferDesc extends Structure {
-			
-			/** Version number. */
-		    public NativeLong ulVersion;
-		    
-		    /** Number of buffers. */
-		    public NativeLong cBuffers;
-		    
-		    /** Array of buffers. */
-		    public SecBuffer.ByReference pBuffer;
-		    
-		    /** Last used Java array. */
-		    private transient Object buffers[];
-		    
-		    /** Create a new SecBufferDesc. */
-		    public SecBufferDesc (SecBuffer.ByReference buffers[]) {
-		    	this.ulVersion = new NativeLong(SECBUFFER_VERSION);
-		    	this.cBuffers = new NativeLong(buffers.length);
-		    	this.pBuffer = buffers[0];
-		    	this.buffers = buffers;
-		    	allocateMemory ();
-		    }
-		    
-		    /** Create a new SecBufferDesc with one buffer. */
-		    public SecBufferDesc (SecBuffer.ByReference buffer) {
-		    	this ((SecBuffer.ByReference[]) buffer.toArray (1));
-		    }
-		    
-		    /** Create a new SecBufferDesc with one SECBUFFER_EMPTY buffer. */
-		    public SecBufferDesc () {
-		    	this (new SecBuffer.ByReference ());
-		    }
-		    
-		    /**
-		     * Create a new SecBufferDesc with initial data.
-		     * @param type    Token type.
-		     * @param token   Initial token data.
-		     */
-		    public SecBufferDesc (int type, byte[] token) {
-		    	this (new SecBuffer.ByReference(type, token));
-		    }
-		    
-		    /**
-		     * Create a new SecBufferDesc with one SecBuffer of a given type and size.
-		     * @param type
-		     * @param tokenSize
-		     */
-		    public SecBufferDesc (int type, int tokenSize) {
-		    	this (new SecBuffer.ByReference (type, tokenSize));
-		    }
-		    
-		    /**
-		     * Create a new SecBufferDesc with the given number of buffers.
-		     * @param type
-		     * @param tokenSize
-		     */
-		    public SecBufferDesc (int buffers) {
-		    	this ((SecBuffer.ByReference[]) new SecBuffer.ByReference().toArray (2));
-		    }
-		    
-		    private void syncArray () {
-	    		if (buffers!=null && buffers[0] == pBuffer)
-					return;
-				buffers = pBuffer.toArray (cBuffers.intValue ());
-				pBuffer = (SecBuffer.ByReference) buffers[0];
-		    }
-		    
-		    public SecBuffer.ByReference getBuffer (int buffer) {
-		    	if (pBuffer == null || cBuffers == null)
-		    		throw new RuntimeException("pBuffers | cBuffers");
-		    	if (cBuffers.intValue () < buffer)
-			    	throw new RuntimeException("cBuffers < "+buffer);
-		    	syncArray ();
-	    		return (SecBuffer.ByReference) buffers[buffer];
-		    }
-		    
-		    public byte[] getBytes(int buffer) {
-		    	SecBuffer.ByReference secBuffer = getBuffer (buffer);
-		    	return secBuffer.cbBuffer.intValue()==0 ? null : secBuffer.getBytes ();
-		    }
-		    
-		    public byte[] getBytes() {
-				return getBytes (0);
+		/** Win32 API structure (see MSDN for details) */
+		public static class SecPkgInfo extends Structure {
+			public NativeLong fCapabilities;
+			public short wVersion;
+			public short wRPCID;
+			public NativeLong cbMaxToken;
+			public WString Name;
+			public WString Comment;
+
+			public SecPkgInfo (Pointer p) {
+				super (p);
+				read ();
 			}
 		}
 
+		public static final int SECPKG_ATTR_SIZES = 0;
+		public static final int SECPKG_ATTR_NAMES = 1;
+		public static final int SECPKG_ATTR_NATIVE_NAMES = 13;
+
+		/** Win32 API structure (see MSDN for details) */
+		public static class SecPkgContext_Sizes extends Structure {
+			public NativeLong cbMaxToken;
+			public NativeLong cbMaxSignature;
+			public NativeLong cbBlockSize;
+			public NativeLong cbSecurityTrailer;
+		}
+
+		/** Win32 API structure (see MSDN for details) */
+		public static class SecPkgContext_Names extends Structure {
+			public Pointer sUserName;
+		}
+
+		/** Win32 API structure (see MSDN for details) */
+		public static class SecPkgContext_NativeNames extends Structure {
+			public Pointer sClientName;
+			public Pointer sServerName;
+		}
+
+		/** Win32 API function (see MSDN for details) */
+		public int QueryContextAttributes (CtxtHandle phContext, NativeLong ulAttribute, Structure pBuffer);
+
+		/** Win32 API function (see MSDN for details) */
+		public int QuerySecurityPackageInfo (String pszPackageName, PointerByReference ppPackageInfo);
+
+		/** Win32 API function (see MSDN for details) */
+		public int FreeContextBuffer (Pointer pvContextBuffer);
+
 		/** Win32 API function (see MSDN for details) */
 		public int InitializeSecurityContext (CredHandle phCredential, CtxtHandle phContext,
 				String pszTargetName, NativeLong fContextReq,
@@ -200,5 +469,9 @@ public class Utils {
 		public int MakeSignature (CtxtHandle phContext, NativeLong fQOP,
 				                  SecBufferDesc pToken, NativeLong messageSeqNo);
 
+		/** Win32 API function (see MSDN for details) */
+		public int VerifySignature (CtxtHandle phContext, SecBufferDesc pMessage,
+		                            NativeLong messageSeqNo, NativeLongByReference pfQOP);
+
 	}
 }
@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jcraft.jsch.JSchException;
+
+import name.khoobyar.joe.jsch.sspi.CredentialCache;
+import name.khoobyar.joe.jsch.sspi.GSSContextSSPI;
+import name.khoobyar.joe.jsch.sspi.SPNResolver;
+import name.khoobyar.joe.jsch.sspi.SimulatedBackend;
+
+/**Races whole handshakes on one shared context against each other and against dispose,
+ * to check the lock-free state machine of GSSContextSSPI.  Each race must end without
+ * hanging and without an unexpected exception, and no context or credentials handle
+ * may be left live once every context is disposed.
+ *
+ * usage: ContextStress [rounds [threads]]
+ */
+public class ContextStress {
+
+	public static void main(String[] arg) {
+		int rounds = arg.length > 0 ? Integer.parseInt (arg[0]) : 500;
+		int threads = arg.length > 1 ? Integer.parseInt (arg[1]) : 8;
+
+		final SimulatedBackend backend = new SimulatedBackend ();
+		SPNResolver.getDefault ().addAlias ("stress", "stress.example.com");
+		final AtomicInteger established = new AtomicInteger ();
+		final AtomicInteger refused = new AtomicInteger ();
+		final AtomicInteger failed = new AtomicInteger ();
+		ExecutorService executor = Executors.newFixedThreadPool (threads);
+
+		try {
+			for (int round = 0; round < rounds; round++) {
+				final GSSContextSSPI context = new GSSContextSSPI (backend, null);
+				final CountDownLatch start = new CountDownLatch (1);
+				List<Future<?>> results = new ArrayList<Future<?>> ();
+				for (int t = 0; t < threads; t++) {
+					final boolean disposer = t == threads - 1;
+					results.add (executor.submit (new Callable<Object> () {
+						public Object call () throws Exception {
+							start.await ();
+							if (disposer) {
+								Thread.sleep (0, 50000);
+								context.dispose ();
+								return null;
+							}
+							try {
+								handshake (context);
+								established.incrementAndGet ();
+							} catch (IllegalStateException e) {
+								// Another thread owns the context, or it was disposed.
+								refused.incrementAndGet ();
+							} catch (JSchException e) {
+								// Another thread restarted the handshake between legs.
+								failed.incrementAndGet ();
+							}
+							return null;
+						}
+					}));
+				}
+				start.countDown ();
+				for (Future<?> result : results) {
+					try {
+						result.get (30, TimeUnit.SECONDS);
+					} catch (TimeoutException e) {
+						throw new IllegalStateException ("Round " + round + " hung in state " + context.getState ());
+					}
+				}
+				context.dispose ();
+				if (context.getState ().getStage () != GSSContextSSPI.Stage.DISPOSED)
+					throw new IllegalStateException ("Round " + round + " ended in state " + context.getState ());
+			}
+
+			CredentialCache.clear ();
+			System.out.println ("established=" + established + " refused=" + refused + " failed=" + failed
+				+ " contexts=" + backend.getLiveContexts () + " credentials=" + backend.getLiveCredentials ());
+			if (backend.getLiveContexts () != 0 || backend.getLiveCredentials () != 0)
+				throw new IllegalStateException ("Handles were left live");
+			System.out.println ("OK");
+		} catch (Exception e) {
+			e.printStackTrace ();
+			System.exit (1);
+		} finally {
+			executor.shutdownNow ();
+		}
+	}
+
+	private static void handshake (GSSContextSSPI context) throws JSchException {
+		byte token[] = new byte[] { 1 };
+		context.create (System.getProperty ("user.name"), "stress");
+		context.init (null, 0, 0);
+		while (! context.isEstablished ())
+			context.init (token, 0, token.length);
+		context.getMIC (token, 0, token.length);
+	}
+}
@@ -0,0 +1,71 @@
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jcraft.jsch.JSchException;
+
+import name.khoobyar.joe.jsch.sspi.GSSContextSSPI;
+import name.khoobyar.joe.jsch.sspi.SPNResolver;
+import name.khoobyar.joe.jsch.sspi.SimulatedBackend;
+
+public class ServicePrincipals {
+
+	public static void main(String[] arg) {
+		// A name service that knows one host, and counts how often it is asked.
+		final AtomicInteger lookups = new AtomicInteger ();
+		SPNResolver resolver = new SPNResolver (new SPNResolver.NameService () {
+			public String getCanonicalHostName (String host) throws UnknownHostException {
+				lookups.incrementAndGet ();
+				if ("build".equals (host))
+					return "build.example.com";
+				throw new UnknownHostException (host);
+			}
+		});
+		SPNResolver.setDefault (resolver);
+		resolver.addServicePrincipal ("legacy", "host/legacy-spn.example.com");
+
+		try {
+			// Host names without an override are canonicalized through the name service.
+			GSSContextSSPI.State state = create ("build");
+			check ("host/build.example.com".equals (resolver.getServicePrincipalName ("build")), "derived SPN");
+			check ("build.example.com".equals (state.getServerName ()), "canonical server name");
+			check (lookups.get () == 1, "one lookup for a derived SPN, got " + lookups.get ());
+
+			// A configured SPN is used as is, even for a host that does not resolve.
+			lookups.set (0);
+			state = create ("legacy");
+			check ("host/legacy-spn.example.com".equals (resolver.getServicePrincipalName ("legacy")), "configured SPN");
+			check ("legacy".equals (state.getServerName ()), "uncanonicalized server name");
+			check (lookups.get () == 0, "no lookups for a configured SPN, got " + lookups.get ());
+
+			// Without an override, a host that does not resolve fails to create.
+			try {
+				create ("unknown");
+				check (false, "unresolvable host");
+			} catch (JSchException e) {
+				System.out.println ("unresolvable host: " + e.getMessage ());
+			}
+
+			System.out.println ("OK");
+		} catch (Exception e) {
+			e.printStackTrace ();
+			System.exit (1);
+		} finally {
+			SPNResolver.setDefault (new SPNResolver ());
+		}
+	}
+
+	private static GSSContextSSPI.State create (String host) throws JSchException {
+		GSSContextSSPI context = new GSSContextSSPI (new SimulatedBackend (), null);
+		try {
+			context.create (System.getProperty ("user.name"), host);
+			return context.getState ();
+		} finally {
+			context.dispose ();
+		}
+	}
+
+	private static void check (boolean condition, String what) {
+		if (! condition)
+			throw new IllegalStateException ("failed: " + what);
+	}
+}